@@ -1,6 +1,9 @@
 import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
@@ -13,10 +16,18 @@ final class Block {
     Timestamp timeStamp;
     long time; //as number of milliseconds since 1/1/1970.
     String data; //transaction
+    List<String> transactions; //the transactions of a batched block, null when the block holds one transaction in data
+    String merkleRoot; //Merkle root of the transactions, hashed in place of data; null when the block is not batched
     String previousHash = ""; //the SHA256 hash of a block's parent. This is also called a hash pointer. default is an empty string
-    BigInteger nonce;  // a BigInteger value determined by a proof of work routine
-    int difficulty; //the number of leftmost nibbles that need to be 0
+    long nonce;  // a value determined by a proof of work routine
+    BigInteger wideNonce; // only set once the nonce no longer fits in a long
+    boolean hasNonce; // false until a nonce is set, hashed as "null" like an unset BigInteger
+    int difficulty; //the number of leftmost nibbles that need to be 0, or a compact 256-bit target (see Difficulty)
     String hash; //in SHA256 format
+    BlockChain chain; //the chain holding this block, it is told about every change so it can verify the block again
+    //hashed in front of a batched block; the hash input of a plain block starts with a digit of its index, so a
+    //plain block whose data is a Merkle root never hashes like the batched block with that root
+    static final String BATCHED_DOMAIN = "merkle:";
 
     /**
      * Constructor index - This is the position within the chain. Genesis is at
@@ -34,49 +45,170 @@ final class Block {
         setTimestamp(timestamp);
         setData(Tx);
         setDifficulty(difficulty);
-        nonce = getNonce();
         previousHash = getPreviousHash();
         //calculate hash after all variables are set
         this.hash = calculateHash();
 
     }
 
+    /**
+     * Constructor of a batched block that holds several transactions. The
+     * hash covers the Merkle root of the transactions in place of data, so
+     * mining it costs the same whatever the number of transactions.
+     *
+     * @param index
+     * @param timestamp
+     * @param transactions at least one transaction
+     * @param difficulty
+     */
+    Block(int index, Timestamp timestamp, List<String> transactions, int difficulty) {
+        setIndex(index);
+        setTimestamp(timestamp);
+        setTransactions(transactions);
+        setDifficulty(difficulty);
+        //calculate hash after all variables are set
+        this.hash = calculateHash();
+    }
+
+    //used by restore, sets nothing and computes no hash
+    private Block() {
+    }
+
+    /**
+     * Rebuilds a block that was mined before, for example from a BlockStore.
+     * The hash is taken as it was stored and not computed again, so a block
+     * that was corrupted before it was stored stays detectable.
+     *
+     * @param index
+     * @param timestamp
+     * @param data
+     * @param previousHash
+     * @param nonce null if the block never had a nonce
+     * @param difficulty
+     * @param hash
+     * @return
+     */
+    static Block restore(int index, Timestamp timestamp, String data, String previousHash, BigInteger nonce, int difficulty, String hash) {
+        return restore(index, timestamp, data, previousHash, nonce, difficulty, hash, null, null);
+    }
+
+    /**
+     * Rebuilds a block that was mined before, batched or not. The transactions
+     * and the Merkle root are taken as they were stored, a root that does not
+     * match the transactions stays detectable.
+     *
+     * @param index
+     * @param timestamp
+     * @param data
+     * @param previousHash
+     * @param nonce null if the block never had a nonce
+     * @param difficulty
+     * @param hash
+     * @param transactions null if the block is not batched
+     * @param merkleRoot null if the block is not batched
+     * @return
+     */
+    static Block restore(int index, Timestamp timestamp, String data, String previousHash, BigInteger nonce, int difficulty, String hash,
+            List<String> transactions, String merkleRoot) {
+        Block b = new Block();
+        b.setIndex(index);
+        b.setTimestamp(timestamp);
+        b.setData(data);
+        b.setPreviousHash(previousHash);
+        b.setNonce(nonce);
+        b.setDifficulty(difficulty);
+        b.transactions = transactions == null ? null : new ArrayList<>(transactions);
+        b.merkleRoot = merkleRoot;
+        b.hash = hash;
+        return b;
+    }
+
     /**
      * This method computes a hash of the concatenation of the index, timestamp,
-     * data, previousHash, nonce, and difficulty. Returns: a String holding
-     * Hexadecimal characters
+     * data, previousHash, nonce, and difficulty. A batched block has the
+     * Merkle root of its transactions in place of data, and BATCHED_DOMAIN in
+     * front of the index. Returns: a String holding Hexadecimal characters
      *
      * @return
      */
     public String calculateHash() {
+        return calculateHash(nonceString());
+    }
+
+    /**
+     * This method computes the hash this block would have with the given
+     * nonce, without changing the block. It lets several mining workers try
+     * different nonces on the same block at the same time.
+     *
+     * @param candidate
+     * @return
+     */
+    public String calculateHash(BigInteger candidate) {
+        return calculateHash(String.valueOf(candidate));
+    }
+
+    //hashes the block with the decimal text of a nonce
+    private String calculateHash(String nonceText) {
         //data conversion
         String ind = String.valueOf(index);
         //hash
-        String calculatedhash = applySha256(ind + timeStamp + data + previousHash + nonce + difficulty);
+        String calculatedhash = applySha256(domain() + ind + timeStamp + payload() + previousHash + nonceText + difficulty);
         return calculatedhash;
     }
 
-    //helper class to apply Sha256 to a string and returns the result. 
-    public static String applySha256(String input) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            //Applies sha256 to input
-            byte[] hash = digest.digest(input.getBytes("UTF-8"));
-            // This will contain hash as hexidecimal
-            StringBuilder hexString = new StringBuilder();
-            //hashing
-            for (int i = 0; i < hash.length; i++) {
-                String hex = Integer.toHexString(0xff & hash[i]);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
+    /**
+     * what the hash covers for the transactions: the data of a plain block or
+     * the Merkle root of a batched block
+     *
+     * @return
+     */
+    String payload() {
+        return merkleRoot != null ? merkleRoot : data;
+    }
+
+    /**
+     * what the hash input starts with, BATCHED_DOMAIN for a batched block and
+     * nothing for a plain one
+     *
+     * @return
+     */
+    String domain() {
+        return isBatched() ? BATCHED_DOMAIN : "";
+    }
+
+    /**
+     * checks that a hex hash starts with the given number of 0 nibbles, or is
+     * not above the target when the difficulty is a compact target. No hash
+     * meets a difficulty that Difficulty.isValid rejects.
+     *
+     * @param hash
+     * @param difficulty
+     * @return
+     */
+    public static boolean meetsDifficulty(String hash, int difficulty) {
+        if (!Difficulty.isValid(difficulty)) {
+            return false;
+        }
+        if (Difficulty.isTarget(difficulty)) {
+            return Difficulty.meetsTarget(hash, difficulty);
+        }
+        if (hash.length() < difficulty) {
+            return false;
+        }
+        for (int i = 0; i < difficulty; i++) {
+            if (hash.charAt(i) != '0') {
+                return false;
             }
-            return hexString.toString();
-            //handle exceptions
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
+        return true;
+    }
+
+    //helper class to apply Sha256 to a string and returns the result. 
+    public static String applySha256(String input) {
+        //the digest of the hash function chosen at startup, reused per thread
+        byte[] hash = Hashing.digest().digest(input.getBytes(StandardCharsets.UTF_8));
+        // This will contain hash as hexidecimal
+        return MiningHasher.toHex(hash);
     }
 
     /**
@@ -88,12 +220,78 @@ final class Block {
      * @return
      */
     public BigInteger getNonce() {
-        return this.nonce;
+        if (!hasNonce) {
+            return null;
+        }
+        return wideNonce != null ? wideNonce : BigInteger.valueOf(nonce);
     }
 
     //setter
     public void setNonce(BigInteger nonce) {
+        if (nonce == null) {
+            this.hasNonce = false;
+            this.wideNonce = null;
+            this.nonce = 0;
+            changed();
+        } else if (nonce.bitLength() < 64) {
+            setNonce(nonce.longValue());
+        } else {
+            //the nonce space of a long is used up
+            this.hasNonce = true;
+            this.wideNonce = nonce;
+            this.nonce = 0;
+            changed();
+        }
+    }
+
+    /**
+     * nonce - a nonce that fits in a long, this is the common case and keeps
+     * the proof of work free of BigInteger allocations
+     *
+     * @param nonce
+     */
+    public void setNonce(long nonce) {
+        this.hasNonce = true;
+        this.wideNonce = null;
         this.nonce = nonce;
+        changed();
+    }
+
+    /**
+     * Sets a nonce found by mining and the hash it gives, then tells the
+     * chain once, so what listens to the chain sees the new hash with the new
+     * nonce and never the old hash.
+     *
+     * @param nonce
+     * @param hash
+     */
+    void setProof(long nonce, String hash) {
+        this.hasNonce = true;
+        this.wideNonce = null;
+        this.nonce = nonce;
+        this.hash = hash;
+        changed();
+    }
+
+    //the same for a nonce past Long.MAX_VALUE
+    private void setProof(BigInteger nonce, String hash) {
+        this.hasNonce = true;
+        this.wideNonce = nonce;
+        this.nonce = 0;
+        this.hash = hash;
+        changed();
+    }
+
+    /**
+     * the nonce as decimal text, exactly as a BigInteger nonce prints
+     *
+     * @return
+     */
+    String nonceString() {
+        if (!hasNonce) {
+            return "null";
+        }
+        return wideNonce != null ? wideNonce.toString() : Long.toString(nonce);
     }
 
     /**
@@ -110,23 +308,44 @@ final class Block {
      *
      * Returns: a String with a hash that has the appropriate number of leading
      * hex zeroes. The difficulty value is already in the block. This is the
-     * number of hex 0's a proper hash must have.
+     * number of hex 0's a proper hash must have, or the 256-bit target it must
+     * not exceed.
      *
      * @return
      */
     public String proofOfWork(int difficulty) {
-        //initiate the nonce
-        nonce = new BigInteger("0");
-        BigInteger one = new BigInteger("1");
-        //Create a string with difficulty * "0" 
-        String target = new String(new char[difficulty]).replace('\0', '0');
-        //increments the nonce until we have a good hash
-        while (!hash.substring(0, difficulty).equals(target)) {
-            nonce = getNonce().add(one);
-            //compute hash
-            hash = calculateHash();
+        long start = System.nanoTime();
+        //the hasher encodes the fixed part of the block once and tries the nonces on raw bytes
+        MiningHasher hasher = new MiningHasher(this);
+        //increments the nonce from 0 until we have a good hash
+        long found = hasher.search(0, 1, difficulty, () -> Long.MAX_VALUE);
+        if (found < 0) {
+            ChainMetrics.get().recordHashes(hasher.getAttempts());
+            return widenedProofOfWork(difficulty);
         }
+        setProof(found, hasher.toHex());
+        ChainMetrics.get().recordMining(hasher.getAttempts(), System.nanoTime() - start, found);
+        return hash;
+    }
 
+    /**
+     * The proof of work for nonces that no longer fit in a long. Every nonce
+     * below Long.MAX_VALUE has been tried already, so this goes on from there
+     * with BigInteger nonces. It is slow but practically never reached.
+     *
+     * @param difficulty
+     * @return
+     */
+    String widenedProofOfWork(int difficulty) {
+        long start = System.nanoTime();
+        long attempts = 1;
+        BigInteger candidate = BigInteger.valueOf(Long.MAX_VALUE);
+        while (!meetsDifficulty(calculateHash(candidate), difficulty)) {
+            candidate = candidate.add(BigInteger.ONE);
+            attempts++;
+        }
+        setProof(candidate, calculateHash(candidate));
+        ChainMetrics.get().recordMining(attempts, System.nanoTime() - start, -1);
         return hash;
     }
 
@@ -148,6 +367,7 @@ final class Block {
      */
     public void setDifficulty(int difficulty) {
         this.difficulty = difficulty;
+        changed();
     }
 
     /**
@@ -160,9 +380,15 @@ final class Block {
      */
     @Override
     public java.lang.String toString() {
-        String jsonFormat = String.format("{\"index\" : %d,\"time stamp \" : \"%s\",\"Tx \":\"%s\",\"PrevHash\" : \"%s\",\"nonce\" : %d,\"difficulty\": %d}%n",
-                index, timeStamp, data, previousHash, nonce, difficulty);
-        return jsonFormat;
+        StringBuilder jsonFormat = new StringBuilder();
+        try {
+            //the strings are escaped, so data with quotes still gives valid JSON
+            JsonChainWriter.appendBlock(jsonFormat, this);
+        } catch (java.io.IOException e) {
+            //a StringBuilder does not throw
+            throw new RuntimeException(e);
+        }
+        return jsonFormat.toString();
 
     }
 
@@ -173,6 +399,7 @@ final class Block {
      */
     public void setPreviousHash(java.lang.String previousHash) {
         this.previousHash = previousHash;
+        changed();
     }
 
     //getter
@@ -195,7 +422,9 @@ final class Block {
      * @param index
      */
     public final void setIndex(int index) {
+        changed();
         this.index = index;
+        changed();
     }
 
     /**
@@ -205,6 +434,8 @@ final class Block {
      */
     public void setTimestamp(java.sql.Timestamp timestamp) {
         this.timeStamp = timestamp;
+        this.time = timestamp == null ? 0 : timestamp.getTime();
+        changed();
     }
 
     /**
@@ -232,7 +463,76 @@ final class Block {
      * @param data
      */
     public void setData(java.lang.String data) {
-        this.data = data;
+        if (transactions != null) {
+            //a batched block now holds just this transaction, its Merkle root no longer matches
+            transactions = new ArrayList<>(Collections.singletonList(data));
+        } else {
+            this.data = data;
+        }
+        changed();
+    }
+
+    /**
+     * whether this block holds a batch of transactions under a Merkle root
+     *
+     * @return
+     */
+    public boolean isBatched() {
+        return transactions != null;
+    }
+
+    /**
+     * the transactions of this block, the data of a plain block is its only
+     * transaction
+     *
+     * @return
+     */
+    public List<String> getTransactions() {
+        if (transactions != null) {
+            return Collections.unmodifiableList(transactions);
+        }
+        return data == null ? Collections.<String>emptyList() : Collections.singletonList(data);
+    }
+
+    /**
+     * transactions - the transactions of a batched block. The Merkle root is
+     * computed again, so the block's hash changes with them.
+     *
+     * @param transactions at least one transaction
+     */
+    public void setTransactions(List<String> transactions) {
+        this.transactions = new ArrayList<>(transactions);
+        this.merkleRoot = MerkleTree.root(this.transactions);
+        this.data = null;
+        changed();
+    }
+
+    /**
+     * Replaces one transaction of a batched block without touching its Merkle
+     * root, the way a corrupted body looks.
+     *
+     * @param position
+     * @param tx
+     */
+    public void setTransaction(int position, String tx) {
+        transactions.set(position, tx);
+        changed();
+    }
+
+    /**
+     * the Merkle root of the transactions, null if the block is not batched
+     *
+     * @return
+     */
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    //tells the chain holding this block that the block changed
+    private void changed() {
+        if (chain != null) {
+            chain.blockChanged(this);
+        }
     }
 
 }//end class
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ *
+ * This is the BlockCache class, the list of blocks of a chain that lives in
+ * its BlockStore instead of the heap. It keeps the most recently used blocks
+ * in memory up to a budget of bytes and reads any other block back from the
+ * store when it is asked for, so a chain of millions of blocks runs in a
+ * bounded heap while the tip and the blocks being verified stay in memory.
+ *
+ * The cache never writes: a block is saved by BlockChain.saveBlock when it is
+ * added or changed, which puts the saved block back in the cache, so a copy
+ * read from the store before the save is not served afterwards.
+ */
+final class BlockCache extends AbstractList<Block> implements RandomAccess {
+
+    private final BlockStore store;
+    private final BlockChain chain; //blocks read back are linked to this chain
+    private final long budgetBytes;
+    private final LinkedHashMap<Integer, Block> blocks = new LinkedHashMap<>(1024, 0.75f, true); //least recently used first
+    private long usedBytes;
+    private int size;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param store a loaded or scanned store holding the blocks
+     * @param chain the chain the blocks belong to
+     * @param budgetBytes about how many bytes of heap the cached blocks may
+     * take
+     */
+    BlockCache(BlockStore store, BlockChain chain, long budgetBytes) {
+        if (budgetBytes < 1) {
+            throw new IllegalArgumentException("cache budget must be > 0");
+        }
+        this.store = store;
+        this.chain = chain;
+        this.budgetBytes = budgetBytes;
+        this.size = store.getBlockCount();
+    }
+
+    /**
+     * the block at index i, read from the store if it is not cached
+     *
+     * @param i
+     * @return
+     */
+    @Override
+    public Block get(int i) {
+        synchronized (this) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("block " + i + " of " + size);
+            }
+            Block b = blocks.get(i);
+            if (b != null) {
+                hits++;
+                ChainMetrics.get().recordCacheHit();
+                return b;
+            }
+            misses++;
+        }
+        ChainMetrics.get().recordCacheMiss();
+        //read outside the lock, several validation threads can wait on the disk at once
+        Block read;
+        try {
+            read = store.read(i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        read.chain = chain;
+        synchronized (this) {
+            //another thread may have read it meanwhile, every caller gets the same block
+            Block cached = blocks.get(i);
+            if (cached != null) {
+                return cached;
+            }
+            put(i, read);
+            return read;
+        }
+    }
+
+    /**
+     * The block at index i without caching it: a block that is not cached is
+     * read from the store and not kept, so a scan of the whole chain does not
+     * evict the blocks in use.
+     *
+     * @param i
+     * @return
+     */
+    public Block peek(int i) {
+        synchronized (this) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("block " + i + " of " + size);
+            }
+            Block b = blocks.get(i);
+            if (b != null) {
+                return b;
+            }
+        }
+        try {
+            return store.read(i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * A block appended to the chain. It is cached, the chain saves it to the
+     * store.
+     *
+     * @param b
+     * @return
+     */
+    @Override
+    public synchronized boolean add(Block b) {
+        if (b.index != size) {
+            throw new IllegalArgumentException("block " + b.index + " added at position " + size);
+        }
+        size++;
+        put(b.index, b);
+        return true;
+    }
+
+    /**
+     * A block that was just saved to the store. It replaces the cached copy
+     * of its index, which a reader may have read back from the store before
+     * the block was saved.
+     *
+     * @param b
+     */
+    public synchronized void saved(Block b) {
+        if (b.index >= 0 && b.index < size) {
+            put(b.index, b);
+        }
+    }
+
+    @Override
+    public synchronized Block set(int i, Block b) {
+        Block old = get(i);
+        put(i, b);
+        return old;
+    }
+
+    //caches a block and evicts the least recently used ones over the budget, never the block just put
+    private void put(int i, Block b) {
+        Block old = blocks.put(i, b);
+        if (old != null) {
+            usedBytes -= sizeOf(old);
+        }
+        usedBytes += sizeOf(b);
+        Iterator<Map.Entry<Integer, Block>> eldest = blocks.entrySet().iterator();
+        while (usedBytes > budgetBytes && blocks.size() > 1) {
+            Map.Entry<Integer, Block> e = eldest.next();
+            usedBytes -= sizeOf(e.getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * about how many bytes of heap a block takes
+     *
+     * @param b
+     * @return
+     */
+    static long sizeOf(Block b) {
+        long size = 160; //the block, its timestamp and nonce
+        size += chars(b.data) + chars(b.previousHash) + chars(b.hash) + chars(b.merkleRoot);
+        if (b.transactions != null) {
+            for (String tx : b.transactions) {
+                size += 16 + chars(tx);
+            }
+        }
+        return size;
+    }
+
+    //a String with its array
+    private static long chars(String s) {
+        return s == null ? 0 : 56 + 2L * s.length();
+    }
+
+    /**
+     * the number of blocks in memory
+     *
+     * @return
+     */
+    public synchronized int getCachedBlocks() {
+        return blocks.size();
+    }
+
+    /**
+     * about how many bytes of heap the cached blocks take
+     *
+     * @return
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}//end class
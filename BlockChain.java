@@ -1,9 +1,18 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.List;
 //an alternative way to print the json
 //import com.google.gson.GsonBuilder;
-import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.Scanner;
+import java.util.function.IntToLongFunction;
 
 /**
  *
@@ -15,19 +24,95 @@ import java.util.Scanner;
  */
 public class BlockChain extends java.lang.Object {
 
-    static ArrayList<Block> blockchain = new ArrayList<Block>();//ArrayList to store the block
-    static String chainHash; //hash of the most recent added block
-    static int index = 0;//increments everytime a block is added
+    //the blocks, a BlockList that readers never lock, a ColumnarBlockList or a BlockCache when the chain stays on disk
+    private volatile List<Block> blockchain;
+    private volatile String chainHash = ""; //hash of the most recent added block
+    private volatile BigInteger totalWork = BigInteger.ZERO; //exact work of all the blocks, as they were when added
+    //appends, loads and repairs of this chain happen one at a time, readers do not take this lock
+    private final Object appendLock = new Object();
+    //blocks below this index have been verified and have not changed since, set back by any change below it
+    private int verifiedUpTo = 0;
+    private long changes; //number of block changes, a check only moves the watermark if none happened meanwhile
+    private final Object verifyLock = new Object(); //guards verifiedUpTo and changes
+    //append-only file the blocks are saved to, null when the chain only lives in memory
+    private BlockStore store;
+    //checkpoint of the verified blocks of the store, null for none
+    private Path checkpoint;
+    private int trustedBlocks; //blocks trusted from the checkpoint when the chain was loaded
+    private String checkpointProblem; //why the checkpoint was not used, null if it was or there was none
+    //heap budget of a chain that stays in the store, -Dblockchain.cache.mb=n; 0 loads the whole chain into memory
+    static long cacheBytes = Long.getLong("blockchain.cache.mb", 0) << 20;
+    //a chain in memory is held as columns of headers instead of Block objects, -Dblockchain.columnar=true
+    static boolean columnar = Boolean.getBoolean("blockchain.columnar");
+    static final int PAGE_SIZE = 100; //blocks shown at a time by menu option 3
+    //pending transactions of batched blocks, null when every block holds one transaction
+    private Mempool mempool = Mempool.fromSystemProperties();
+    //number of mining threads, set with -Dblockchain.threads=n. 1 mines on the calling thread
+    static int miningThreads = Integer.getInteger("blockchain.threads", 1);
+    //number of threads that verify the chain, set with -Dblockchain.verify.threads=n
+    static int verifyThreads = Integer.getInteger("blockchain.verify.threads", 1);
+    //shared by every chain of the process
+    static ChainValidator validator = verifyThreads > 1 ? new ChainValidator(verifyThreads) : null;
+    //hash, transaction and time lookups; -Dblockchain.index.entries=n bounds the cached entries of a chain on disk
+    private volatile BlockIndex lookup;
+    //wanted time per block, -Dblockchain.retarget.millis=n; 0 mines every block at the difficulty it is given
+    static long retargetMillis = Long.getLong("blockchain.retarget.millis", 0);
+    //number of recent blocks whose mining speed sets the next difficulty, -Dblockchain.retarget.window=n
+    static int retargetWindow = Math.max(1, Integer.getInteger("blockchain.retarget.window", 16));
+    //expected work and measured time of the blocks last added by this process, a ring guarded by itself
+    private final double[] recentWork = new double[retargetWindow];
+    private final long[] recentMillis = new long[retargetWindow];
+    private int recentCount;
+    private int recentNext;
 
     /**
-     * This BlockChain has exactly two instance members - an ArrayList to hold
-     * Blocks and a chain hash to hold a SHA256 hash of the most recently added
-     * Block. This constructor creates an empty ArrayList for Block storage.
-     * This constructor sets the chain hash to the empty string.
+     * This BlockChain holds a list of Blocks and a chain hash to hold a SHA256
+     * hash of the most recently added Block. This constructor creates an empty
+     * list for Block storage and sets the chain hash to the empty string.
+     *
+     * A chain can be read from any number of threads while one thread adds
+     * blocks: readers work on a snapshot and never wait for the writer.
      */
     public BlockChain() {
-        BlockChain.blockchain = new ArrayList<>();
-        BlockChain.chainHash = "";
+        blockchain = newMemoryList();
+        lookup = newLookupIndex();
+    }
+
+    /**
+     * A chain held in the given empty BlockList whatever
+     * -Dblockchain.columnar says, for a chain that has to be reorganized.
+     *
+     * @param blocks
+     */
+    BlockChain(BlockList blocks) {
+        blockchain = blocks;
+        lookup = newLookupIndex();
+    }
+
+    //the whole index in memory, or a bounded one reading missed blocks back through get
+    private BlockIndex newLookupIndex() {
+        //a chain that stays on disk cannot be indexed in memory either
+        //and an index of Block objects would undo the columns
+        int entries = Integer.getInteger("blockchain.index.entries",
+                blockchain instanceof BlockCache || blockchain instanceof ColumnarBlockList ? 65536 : 0);
+        if (entries > 0) {
+            //columns already hold the time of every block, the index reads them instead of a copy
+            List<Block> blocks = blockchain;
+            IntToLongFunction timeColumn = blocks instanceof ColumnarBlockList ? ((ColumnarBlockList) blocks)::getTime : null;
+            return new BoundedChainIndex(entries, this::getChainSize, this::get, this::scanBlock, timeColumn);
+        }
+        return new ChainIndex();
+    }
+
+    //a block for a scan of the whole chain, one that is not cached stays out of the cache
+    private Block scanBlock(int i) {
+        List<Block> blocks = blockchain;
+        return blocks instanceof BlockCache ? ((BlockCache) blocks).peek(i) : blocks.get(i);
+    }
+
+    //the list of a chain held in memory
+    private List<Block> newMemoryList() {
+        return columnar ? new ColumnarBlockList(this) : new BlockList();
     }
 
     /**
@@ -44,7 +129,18 @@ public class BlockChain extends java.lang.Object {
      * @return
      */
     public Block getLatestBlock() {
-        return blockchain.get(blockchain.size() - 1);
+        List<Block> blocks = snapshot();
+        return blocks.get(blocks.size() - 1);
+    }
+
+    /**
+     * the block at the given position of the chain
+     *
+     * @param i
+     * @return
+     */
+    public Block get(int i) {
+        return blockchain.get(i);
     }
 
     /**
@@ -58,29 +154,151 @@ public class BlockChain extends java.lang.Object {
     }
 
     /**
-     * hashes per second of the computer holding this chain. It uses a simple
-     * string - "00000000" to hash.
+     * The blocks of the chain as they are now, without locking. Blocks added
+     * later are not seen through the snapshot, so its size and its last block
+     * stay consistent while it is read.
      *
      * @return
      */
-    public long hashesPerSecond() {
-        StringBuilder sb = new StringBuilder();
-        long start = System.currentTimeMillis();
-        long end;
-        String hex;
-        int seconds;
-        do {
-            sb.append(0);
-            hex = Block.applySha256(sb.toString());
+    public List<Block> snapshot() {
+        List<Block> blocks = blockchain;
+        if (blocks instanceof BlockList) {
+            return ((BlockList) blocks).snapshot();
+        }
+        if (blocks instanceof ColumnarBlockList) {
+            return ((ColumnarBlockList) blocks).snapshot();
+        }
+        int size = blocks.size();
+        return new AbstractList<Block>() {
+            @Override
+            public Block get(int i) {
+                if (i >= size) {
+                    throw new IndexOutOfBoundsException("block " + i + " of " + size);
+                }
+                return blocks.get(i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * the hash of the most recently added block, as recorded when it was added
+     *
+     * @return
+     */
+    public String getChainHash() {
+        return chainHash;
+    }
+
+    /**
+     * The cumulative work of the chain: the sum of the expected number of
+     * hashes of each block at its difficulty, see Difficulty.exactWork. Of two
+     * branches of a chain the one with more work wins, not the longer one.
+     *
+     * @return
+     */
+    public BigInteger getTotalWork() {
+        return totalWork;
+    }
 
-            end = System.currentTimeMillis();
-            //convert Mills to seconds
-            seconds = (int) (((end - start) / 1000) % 60);
-        } while (seconds < 2); //measures the performance in one second
+    /**
+     * the block store of this chain, null if it only lives in memory
+     *
+     * @return
+     */
+    public BlockStore getStore() {
+        return store;
+    }
 
-        long hashesPerSecond = hex.length();
-        return hashesPerSecond;
+    /**
+     * store - the file the blocks are saved to, set before the chain is loaded
+     * from it
+     *
+     * @param store
+     */
+    public void setStore(BlockStore store) {
+        this.store = store;
+    }
 
+    /**
+     * checkpoint - the file the verified state of the store is saved to and
+     * loaded from, set before the chain is loaded; null for none
+     *
+     * @param checkpoint
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public Path getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * the number of blocks the last load trusted from the checkpoint without
+     * verifying them
+     *
+     * @return
+     */
+    public int getTrustedBlocks() {
+        return trustedBlocks;
+    }
+
+    /**
+     * why the last load did not use the checkpoint file, null if it did or if
+     * there was none
+     *
+     * @return
+     */
+    public String getCheckpointProblem() {
+        return checkpointProblem;
+    }
+
+    /**
+     * the pool of transactions waiting for a batched block, null if every
+     * block holds one transaction
+     *
+     * @return
+     */
+    public Mempool getMempool() {
+        return mempool;
+    }
+
+    /**
+     * mempool - the pool of transactions of batched blocks, null to put each
+     * transaction in its own block
+     *
+     * @param mempool
+     */
+    public void setMempool(Mempool mempool) {
+        this.mempool = mempool;
+    }
+
+    /**
+     * hashes per second of the computer holding this chain. It hashes the
+     * same simple string - "00000000" - for one second and counts the hashes.
+     *
+     * @return
+     */
+    public long hashesPerSecond() {
+        String input = "00000000";
+        long start = System.nanoTime();
+        long end = start + 1_000_000_000L;
+        long count = 0;
+        long now;
+        do {
+            //check the clock every 1000 hashes so timing does not dominate the loop
+            for (int i = 0; i < 1000; i++) {
+                applySha256(input);
+            }
+            count += 1000;
+            now = System.nanoTime();
+        } while (now < end);
+        return (long) (count * 1e9 / (now - start));
     }
 
     /**
@@ -90,11 +308,359 @@ public class BlockChain extends java.lang.Object {
      * BlockChain. The SHA256 hash of every block must exhibit proof of work,
      * block is hashed in the Block class with previous hash
      *
+     * The block should be mined before it is added: adding it is a single
+     * step readers either see completely or not at all.
+     *
      * @param newBlock
      */
     public void addBlock(Block newBlock) {
+        synchronized (appendLock) {
+            append(newBlock);
+        }
+    }
 
+    /**
+     * Adds a mined block only if it extends the most recent block: its index
+     * is the size of the chain and its previous hash is the hash of the most
+     * recent block. Several threads can mine on the same tip; the first one
+     * to add its block wins and the others are refused.
+     *
+     * @param newBlock
+     * @return false if another block was added first
+     */
+    public boolean tryAddBlock(Block newBlock) {
+        synchronized (appendLock) {
+            List<Block> blocks = blockchain;
+            if (newBlock.index != blocks.size()
+                    || !blocks.isEmpty() && !blocks.get(blocks.size() - 1).hash.equals(newBlock.previousHash)) {
+                return false;
+            }
+            append(newBlock);
+            return true;
+        }
+    }
+
+    //saves the block, then publishes it to readers; holds appendLock
+    private void append(Block newBlock) {
+        //the block tells this chain when it is changed later
+        newBlock.chain = this;
+        saveBlock(newBlock);
         blockchain.add(newBlock);
+        lookup.add(newBlock);
+        chainHash = newBlock.hash;
+        totalWork = totalWork.add(Difficulty.exactWork(newBlock.difficulty));
+        recordBlockTime(newBlock);
+    }
+
+    /**
+     * Replaces the blocks from index from to the end with another branch, the
+     * way a node switches to a fork with more work. Readers see the old chain
+     * or the new one, never a mix. The branch must start at from, link to the
+     * block before it and link block by block; it is not verified here.
+     *
+     * Only a chain held in memory can be reorganized, a block store is append
+     * only.
+     *
+     * @param from the first block replaced, 1 or more
+     * @param branch
+     */
+    public void reorganize(int from, List<Block> branch) {
+        synchronized (appendLock) {
+            if (!(blockchain instanceof BlockList) || store != null) {
+                throw new IllegalStateException("only a chain held in memory can be reorganized");
+            }
+            BlockList blocks = (BlockList) blockchain;
+            if (from < 1 || from > blocks.size()) {
+                throw new IllegalArgumentException("cannot replace the chain from block " + from + " of " + blocks.size());
+            }
+            String previous = blocks.get(from - 1).hash;
+            for (int i = 0; i < branch.size(); i++) {
+                Block b = branch.get(i);
+                if (b.index != from + i || !previous.equals(b.previousHash)) {
+                    throw new IllegalArgumentException("block " + b.index + " does not follow block " + (from + i - 1));
+                }
+                previous = b.hash;
+            }
+            BigInteger work = totalWork;
+            for (int i = blocks.size() - 1; i >= from; i--) {
+                Block old = blocks.get(i);
+                lookup.remove(old);
+                work = work.subtract(Difficulty.exactWork(old.difficulty));
+                //a block that left the chain no longer reports its changes to it
+                old.chain = null;
+            }
+            for (Block b : branch) {
+                b.chain = this;
+                work = work.add(Difficulty.exactWork(b.difficulty));
+            }
+            blocks.replaceFrom(from, branch);
+            for (Block b : branch) {
+                lookup.add(b);
+            }
+            totalWork = work;
+            chainHash = blocks.get(blocks.size() - 1).hash;
+            blockChanged(from);
+        }
+    }
+
+    //the time from creating a block to adding it is the time it took to mine
+    private void recordBlockTime(Block block) {
+        long millis = System.currentTimeMillis() - block.timeStamp.getTime();
+        synchronized (recentWork) {
+            recentWork[recentNext] = Difficulty.work(block.difficulty);
+            recentMillis[recentNext] = Math.max(0, millis);
+            recentNext = (recentNext + 1) % recentWork.length;
+            recentCount = Math.min(recentCount + 1, recentWork.length);
+        }
+    }
+
+    /**
+     * The difficulty for the next block. Without retargeting (or before a
+     * block has been mined by this process) it is the difficulty of the most
+     * recent block. With -Dblockchain.retarget.millis=n it is the compact
+     * target that the mining speed measured over the last
+     * blockchain.retarget.window blocks would meet in about n milliseconds.
+     *
+     * @return
+     */
+    public int nextDifficulty() {
+        int current = getLatestBlock().difficulty;
+        if (retargetMillis <= 0) {
+            return current;
+        }
+        double work = 0;
+        long millis = 0;
+        synchronized (recentWork) {
+            if (recentCount == 0) {
+                return current;
+            }
+            for (int i = 0; i < recentCount; i++) {
+                work += recentWork[i];
+                millis += recentMillis[i];
+            }
+        }
+        return Difficulty.retarget(current, work / Math.max(1, millis), retargetMillis);
+    }
+
+    /**
+     * Appends the current state of a block to the block store, if there is
+     * one. Blocks that change after they were added (corruption, repair) are
+     * saved again so that a restart sees the same chain.
+     *
+     * @param block
+     */
+    public void saveBlock(Block block) {
+        if (store == null) {
+            return;
+        }
+        try {
+            store.append(block);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        List<Block> blocks = blockchain;
+        if (blocks instanceof BlockCache) {
+            ((BlockCache) blocks).saved(block);
+        }
+    }
+
+    /**
+     * Rebuilds the chain from the block store without mining any block again.
+     * The loaded blocks are not trusted: the whole chain is verified on the
+     * next check. With a cache budget the blocks stay in the store and only
+     * the recently used ones are kept in memory.
+     *
+     * @return the number of blocks loaded
+     * @throws IOException
+     */
+    public int loadFromStore() throws IOException {
+        synchronized (appendLock) {
+            ChainCheckpoint cp = readCheckpoint();
+            List<Block> blocks;
+            boolean resumed = false;
+            BlockStore.Headers headers = null;
+            if (cacheBytes > 0) {
+                if (cp != null) {
+                    try {
+                        //only the records after the checkpoint are read
+                        store.resume(cp.storeEnd, cp.offsets, cp.count, i -> {
+                        });
+                        resumed = true;
+                    } catch (IOException e) {
+                        checkpointProblem = e.getMessage();
+                        cp = null;
+                    }
+                }
+                if (!resumed) {
+                    //the times and difficulties are read from the records, no block is decoded to load the chain
+                    headers = store.scanHeaders();
+                }
+                blocks = new BlockCache(store, this, cacheBytes);
+            } else {
+                blocks = newMemoryList();
+                for (Block b : store.load()) {
+                    b.chain = this;
+                    blocks.add(b);
+                }
+            }
+            //blocks stored again since the checkpoint, and the blocks after them, are not trusted
+            int firstChanged = cp == null ? 0 : cp.firstChanged(store.getOffsets());
+            int trusted = -1;
+            if (cp != null) {
+                if (firstChanged <= cp.trusted) {
+                    trusted = firstChanged - 1;
+                } else if (cp.trusted < blocks.size() && blocks.get(cp.trusted).hash.equals(cp.trustedHash)) {
+                    trusted = cp.trusted;
+                } else {
+                    checkpointProblem = "block " + cp.trusted + " does not have the checkpointed hash";
+                }
+            }
+            //published once it is complete
+            blockchain = blocks;
+            BlockIndex loaded = newLookupIndex();
+            int indexFrom = 0;
+            if (resumed && loaded instanceof BoundedChainIndex) {
+                //the times come from the checkpoint, hashes and transactions are cached as they are looked up
+                ((BoundedChainIndex) loaded).restoreTimes(cp.times, firstChanged);
+                indexFrom = firstChanged;
+            } else if (headers != null && loaded instanceof BoundedChainIndex) {
+                ((BoundedChainIndex) loaded).restoreTimes(headers.times, headers.count);
+                indexFrom = headers.count;
+            }
+            for (int i = indexFrom; i < blocks.size(); i++) {
+                loaded.add(blocks.get(i));
+            }
+            lookup = loaded;
+            chainHash = blocks.isEmpty() ? "" : blocks.get(blocks.size() - 1).hash;
+            BigInteger work = BigInteger.ZERO;
+            int workFrom = 0;
+            if (cp != null) {
+                work = cp.totalWork;
+                workFrom = Math.min(cp.count, blocks.size());
+            }
+            for (int i = workFrom; i < blocks.size(); i++) {
+                work = work.add(Difficulty.exactWork(headers != null ? headers.difficulties[i] : blocks.get(i).difficulty));
+            }
+            totalWork = work;
+            resetVerified();
+            trustedBlocks = trusted + 1;
+            synchronized (verifyLock) {
+                verifiedUpTo = trustedBlocks;
+            }
+            return blocks.size();
+        }
+    }
+
+    //the checkpoint file, null if there is none or it cannot be used
+    private ChainCheckpoint readCheckpoint() {
+        checkpointProblem = null;
+        if (checkpoint == null) {
+            return null;
+        }
+        try {
+            return ChainCheckpoint.read(checkpoint);
+        } catch (IOException e) {
+            checkpointProblem = e.getMessage();
+            return null;
+        }
+    }
+
+    /**
+     * Verifies the chain (only the blocks after the last verified one) and
+     * writes a checkpoint that trusts every block up to the first invalid
+     * one. The next load of the store only verifies the blocks after it.
+     *
+     * @return the checkpoint written
+     * @throws IOException
+     */
+    public ChainCheckpoint writeCheckpoint() throws IOException {
+        if (store == null || checkpoint == null) {
+            throw new IllegalStateException("a checkpoint needs a block store and a checkpoint file");
+        }
+        synchronized (appendLock) {
+            List<Block> blocks = snapshot();
+            int bad = firstInvalidBlock();
+            int trusted = (bad < 0 ? blocks.size() : bad) - 1;
+            //the checkpoint must not get ahead of the blocks on disk
+            store.sync();
+            long[] offsets = store.getOffsets();
+            int count = offsets.length;
+            long[] times;
+            if (lookup instanceof BoundedChainIndex) {
+                //a chain on disk is not read back just for the times
+                times = ((BoundedChainIndex) lookup).copyTimes(count);
+            } else {
+                times = new long[count];
+                for (int i = 0; i < count; i++) {
+                    times[i] = blocks.get(i).time;
+                }
+            }
+            ChainCheckpoint cp = new ChainCheckpoint(trusted, trusted < 0 ? "" : blocks.get(trusted).hash, totalWork,
+                    store.getEnd(), count, offsets, times);
+            cp.write(checkpoint);
+            return cp;
+        }
+    }
+
+    /**
+     * Called by a block of this chain whenever one of its fields is set. The
+     * block and every block after it have to be verified again, because the
+     * next block links to this block's hash.
+     *
+     * @param blockIndex
+     */
+    void blockChanged(int blockIndex) {
+        synchronized (verifyLock) {
+            changes++;
+            if (blockIndex < verifiedUpTo) {
+                verifiedUpTo = Math.max(0, blockIndex);
+            }
+        }
+    }
+
+    /**
+     * Called by a block of this chain whenever one of its fields is set. Like
+     * blockChanged(int), and the block is indexed again under its new hash,
+     * transactions and time. A columnar chain writes the block back to its
+     * row first.
+     *
+     * @param block
+     */
+    void blockChanged(Block block) {
+        List<Block> blocks = blockchain;
+        if (blocks instanceof ColumnarBlockList) {
+            //the block is a view built from its row, the row is what the chain holds
+            ((ColumnarBlockList) blocks).update(block);
+        }
+        blockChanged(block.index);
+        lookup.update(block);
+    }
+
+    /**
+     * @param hash
+     * @return the index of the block with this hash, -1 if there is none
+     */
+    public int findBlockByHash(String hash) {
+        return lookup.findBlockByHash(hash);
+    }
+
+    /**
+     * @param tx
+     * @return every block and position holding the transaction, in chain
+     * order
+     */
+    public List<BlockIndex.TxLocation> findTransaction(String tx) {
+        return lookup.findTransaction(tx);
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return the indexes of the blocks with a time stamp from from to to,
+     * both included
+     */
+    public List<Integer> findBlocksByTime(Timestamp from, Timestamp to) {
+        return lookup.findBlocksByTime(from.getTime(), to.getTime());
     }
 
     /**
@@ -104,39 +670,41 @@ public class BlockChain extends java.lang.Object {
      */
     @Override
     public java.lang.String toString() {
-        StringBuilder sb = new StringBuilder();
-        //append title
-        sb.append("{ds_chain\" : [");
-        for (Block b : blockchain) {
+        StringWriter sw = new StringWriter();
+        try {
+            writeJson(sw);
+        } catch (IOException e) {
+            //a StringWriter does not throw
+            throw new RuntimeException(e);
+        }
+        return sw.toString();
+
+    }
+
+    /**
+     * Writes the JSON of the entire chain to out, one block at a time, without
+     * building the whole text in memory first.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeJson(Writer out) throws IOException {
+        JsonChainWriter json = new JsonChainWriter(out);
+        json.beginChain();
+        List<Block> blocks = snapshot();
+        for (int i = 0; i < blocks.size(); i++) {
             //append each block
-            sb.append(b.toString());
+            json.writeBlock(blocks.get(i));
         }
         //append chainhash
-        sb.append(String.format("],%n\"chainHash\":\"%s\"}", blockchain.get(blockchain.size() - 1).hash));
-        return sb.toString();
-
+        json.endChain(blocks.isEmpty() ? null : blocks.get(blocks.size() - 1).hash);
+        json.flush();
     }
 
     //helper class to apply Sha256 to a string and returns the result. 
     public static String applySha256(String input) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            //Applies sha256 to the input
-            byte[] hash = digest.digest(input.getBytes("UTF-8"));
-            // This will contain hash as hexidecimal
-            StringBuilder hexString = new StringBuilder();
-            for (int i = 0; i < hash.length; i++) {
-                String hex = Integer.toHexString(0xff & hash[i]);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
-            //handle exceptions
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        //the same hash function as the blocks
+        return Block.applySha256(input);
     }
 
     /**
@@ -151,58 +719,206 @@ public class BlockChain extends java.lang.Object {
      * @return true if and only if the chain is valid
      */
     public boolean isChainValid() {
-        Block currentBlock;
-        //checks that the hash has the requisite number of leftmost 0's (proof of work) as specified in the difficulty field.
-        //also checks the chain hash
-        for (int i = 1; i < blockchain.size(); i++) {
-            currentBlock = blockchain.get(i);
-            char[] charArrHash = currentBlock.hash.toCharArray();
-            StringBuilder sb = new StringBuilder();
-            //get the leftmost zeros
-            for (int j = 0; j < charArrHash.length; j++) {
-                if (charArrHash[j] == 48) {//ASCII zero is 48
-                    sb.append(0);
-                } else if (charArrHash[j] != 48) {
-                    break;
-                }
+        long start = System.nanoTime();
+        try {
+            return checkChain();
+        } finally {
+            ChainMetrics.get().recordValidation(System.nanoTime() - start);
+        }
+    }
+
+    //the checks of isChainValid
+    private boolean checkChain() {
+        int bad = firstInvalidBlock();
+        if (bad < 0) {
+            return true;
+        }
+        List<Block> blocks = snapshot();
+        System.out.println("..." + ChainValidator.problem(blocks.get(bad), blocks.get(bad - 1)));
+        //checks the chainhash equals to the computed hash
+        //chainhash = most recent block's hash
+        if (!chainHash.equals(blocks.get(blocks.size() - 1).calculateHash())) {
+            System.out.println("...Improper chain hash");
+        }
+        return false;
+    }
+
+    /**
+     * Checks the hash, the proof of work and the link to the parent of every
+     * block after the genesis block. With more than one verification thread
+     * the chain is checked in parallel segments; the result is the same.
+     *
+     * Only the blocks from the verified watermark on are checked: blocks below
+     * it passed an earlier check and have not been changed since. After the
+     * check the watermark moves up to the first invalid block, or to the end
+     * of the chain.
+     *
+     * The check runs on a snapshot, blocks can be added meanwhile. If a block
+     * changes during the check the watermark stays where it was.
+     *
+     * @return the lowest index of an invalid block, -1 if the chain is valid
+     */
+    public int firstInvalidBlock() {
+        int from;
+        long seen;
+        synchronized (verifyLock) {
+            from = verifiedUpTo;
+            seen = changes;
+        }
+        List<Block> blocks = snapshot();
+        int bad;
+        if (validator != null) {
+            bad = validator.firstInvalidParallel(blocks, from);
+        } else {
+            bad = ChainValidator.firstInvalid(blocks, from);
+        }
+        synchronized (verifyLock) {
+            if (changes == seen) {
+                verifiedUpTo = bad < 0 ? blocks.size() : bad;
             }
-            //compare registered hash and calculated hash:
-            //currentBlock.hash comes from Block's proof of work
-            if (!currentBlock.hash.equals(currentBlock.calculateHash())) {
+        }
+        return bad;
+    }
 
-                System.out.println("...Improper hash on node " + currentBlock.index + " Does not begin with " + sb.toString());
+    /**
+     * Forgets that any block was verified, so the next check covers the whole
+     * chain.
+     */
+    public void resetVerified() {
+        synchronized (verifyLock) {
+            changes++;
+            verifiedUpTo = 0;
+        }
+    }
 
-                //checks the chainhash equals to the computed hash
-                //chainhash = most recent block's hash
-                if (!chainHash.equals(blockchain.get(blockchain.size() - 1).calculateHash())) {
-                    System.out.println("...Improper chain hash");
-                }
-                return false;
-            }//end if
+    /**
+     * This routine repairs the chain. It finds the first invalid block, links
+     * it to its parent and computes new proof of work for it and for every
+     * block after it, since each of them links to the hash of the block before.
+     * After this routine is run, the chain will be valid. The routine does not
+     * modify any difficulty values. It computes new proof of work based on the
+     * difficulty specified in the Block.
+     */
+    public void repairChain() {
+        repairChain(null);
+    }
 
+    /**
+     * Repairs the chain like repairChain(), mining on the threads set with
+     * -Dblockchain.repair.threads (default: every processor) and printing the
+     * progress to progress, if it is not null. With a block store, the
+     * progress is checkpointed next to the store file so an interrupted repair
+     * resumes where it stopped.
+     *
+     * @param progress
+     * @return the number of blocks mined again
+     */
+    public int repairChain(PrintStream progress) {
+        synchronized (appendLock) {
+            return repair(progress);
         }
+    }
 
-        return true;
+    //repairChain, holding appendLock so no block is added during the repair
+    private int repair(PrintStream progress) {
+        long start = System.nanoTime();
+        int threads = Integer.getInteger("blockchain.repair.threads", Runtime.getRuntime().availableProcessors());
+        ParallelMiner miner = threads > 1 ? new ParallelMiner(threads) : null;
+        try {
+            ChainRepairer repairer = new ChainRepairer(this, miner);
+            repairer.setProgress(progress);
+            String file = System.getProperty("blockchain.repair.checkpoint");
+            if (file != null) {
+                repairer.setCheckpoint(Path.of(file));
+            } else if (store != null) {
+                repairer.setCheckpoint(store.getPath().resolveSibling(store.getPath().getFileName() + ".repair"));
+            }
+            int repaired = repairer.repair();
+            chainHash = getLatestBlock().hash;
+            return repaired;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (miner != null) {
+                miner.shutdown();
+            }
+            ChainMetrics.get().recordRepair(System.nanoTime() - start);
+        }
     }
 
     /**
-     * This routine repairs the chain. It checks the hashes of each block and
-     * ensures that any illegal hashes are recomputed. After this routine is
-     * run, the chain will be valid. The routine does not modify any difficulty
-     * values. It computes new proof of work based on the difficulty specified
-     * in the Block.
+     * Finds a transaction on the chain and returns the proof that it is in its
+     * block. With the proof, a LightClient holding only the block headers can
+     * check the transaction.
+     *
+     * @param tx
+     * @return null if the transaction is not on the chain
      */
-    public void repairChain() {
-        Block currentBlock;
-
-        //loop through blockchain to check hashes:
-        for (int i = 1; i < blockchain.size(); i++) {
-            currentBlock = blockchain.get(i);
-            //compare registered hash and calculated hash
-            //if they don't match, repair the chain to hide corruption of the chain
-            //also check the chainhash, if it does not match the most recent block's hash, recompute new proof of work
-            if (!currentBlock.hash.equals(currentBlock.calculateHash()) || !chainHash.equals(blockchain.get(blockchain.size() - 1).calculateHash())) {
-                currentBlock.hash = currentBlock.calculateHash();
+    public MerkleProof proveTransaction(String tx) {
+        List<BlockIndex.TxLocation> locations = lookup.findTransaction(tx);
+        if (locations.isEmpty()) {
+            return null;
+        }
+        BlockIndex.TxLocation first = locations.get(0);
+        Block b = get(first.block);
+        return b.isBatched() ? MerkleProof.build(first.block, b.transactions, first.position) : MerkleProof.plain(first.block);
+    }
+
+    /**
+     * the headers of the blocks from index from up to, not including, to
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public List<BlockHeader> getHeaders(int from, int to) {
+        List<BlockHeader> headers = new ArrayList<>();
+        List<Block> blocks = snapshot();
+        for (int i = Math.max(0, from); i < Math.min(to, blocks.size()); i++) {
+            headers.add(BlockHeader.of(blocks.get(i)));
+        }
+        return headers;
+    }
+
+    /**
+     * Drains a batch of pending transactions from the mempool into a new
+     * block after the most recent one. The block still has to be mined and
+     * added.
+     *
+     * @param difficulty
+     * @return null if no transaction is pending
+     */
+    public Block createBatchBlock(int difficulty) {
+        List<String> batch = mempool.drainBatch();
+        if (batch.isEmpty()) {
+            return null;
+        }
+        Block block = new Block(getChainSize(), getTime(), batch, difficulty);
+        block.setPreviousHash(getLatestBlock().hash);
+        return block;
+    }
+
+    //mines a block, adds it to the chain and reports the time it took
+    private static void mineBlock(BlockChain bc, Block block, int difficulty, ParallelMiner miner) {
+        //compute time consumed to add the block (total time to mine the block)
+        long start = System.currentTimeMillis();
+        if (miner != null) {
+            miner.mine(block, difficulty);
+        } else {
+            block.proofOfWork(difficulty);
+        }
+        //the block is added once it is mined
+        bc.addBlock(block);
+        long end = System.currentTimeMillis();
+        System.out.format("Total execution time to add this block was %d milliseconds %n", (end - start));
+        if (block.isBatched()) {
+            System.out.format("Block %d holds %d transactions %n", block.index, block.transactions.size());
+        }
+        if (miner != null) {
+            //report the speed of each mining thread
+            long[] rates = miner.getHashesPerSecond();
+            for (int w = 0; w < rates.length; w++) {
+                System.out.format("Worker %d: %d hashes per second %n", w, rates[w]);
             }
         }
     }
@@ -233,16 +949,72 @@ public class BlockChain extends java.lang.Object {
         Scanner input = new Scanner(System.in);
         //flag that is used in the do while loop to keep prompting main menu until the user stops the loop by entering "6", the exit option
         boolean stop = false;
-        //initiate the first block - Genesis: index 0, diff = 2
-        blockchain.add(new Block(0, bc.getTime(), "Genesis", 2));
-        //mine the default block
-        blockchain.get(0).proofOfWork(2);
-        blockchain.get(0).getNonce();
+        //parallel miner, only used when more than one mining thread is configured
+        ParallelMiner miner = miningThreads > 1 ? new ParallelMiner(miningThreads) : null;
+        //pending transactions of batched blocks, null when every block holds one transaction
+        Mempool mempool = bc.getMempool();
+        //publish the metrics to JMX clients
+        ChainMetrics.get().register();
+        //reopen the chain saved by an earlier run, set with -Dblockchain.store=file
+        try {
+            String storeFile = System.getProperty("blockchain.store");
+            if (storeFile != null && !storeFile.isEmpty()) {
+                //the verified blocks are saved to store.checkpoint unless -Dblockchain.checkpoint= is empty
+                String checkpointFile = System.getProperty("blockchain.checkpoint", storeFile + ".checkpoint");
+                bc.setCheckpoint(checkpointFile.isEmpty() ? null : Path.of(checkpointFile));
+                //drop the records that were stored again before the store is opened
+                if (Boolean.getBoolean("blockchain.store.compact") && Files.exists(Path.of(storeFile))) {
+                    long saved = ChainCheckpoint.compact(Path.of(storeFile), bc.getCheckpoint());
+                    System.out.format("Compacted %s, %d bytes saved %n", storeFile, saved);
+                }
+            }
+            BlockStore store = BlockStore.fromSystemProperties();
+            bc.setStore(store);
+            if (store != null) {
+                long start = System.currentTimeMillis();
+                int loaded = bc.loadFromStore();
+                System.out.format("Loaded %d blocks from %s in %d milliseconds %n", loaded, store.getPath(), System.currentTimeMillis() - start);
+                if (store.getTruncatedBytes() > 0) {
+                    System.out.format("Discarded a torn record of %d bytes at the end of the file %n", store.getTruncatedBytes());
+                }
+                if (bc.getCheckpointProblem() != null) {
+                    System.out.println("**Error: checkpoint not used, the whole chain will be verified: " + bc.getCheckpointProblem());
+                } else if (bc.getTrustedBlocks() > 0) {
+                    System.out.format("Trusted %d verified blocks from the checkpoint %n", bc.getTrustedBlocks());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("**Error: cannot open the block store: " + e.getMessage());
+            return;
+        }
+        if (bc.getChainSize() == 0) {
+            //initiate the first block - Genesis: index 0, diff = 2
+            Block genesis = new Block(0, bc.getTime(), "Genesis", 2);
+            //mine the default block before it is added, so it is saved mined
+            genesis.proofOfWork(2);
+            bc.addBlock(genesis);
+        }
+        //serve the chain over HTTP next to the menu, set with -Dblockchain.http.port=n and -Dblockchain.http.host
+        ChainServer server = null;
+        Integer port = Integer.getInteger("blockchain.http.port");
+        if (port != null) {
+            try {
+                server = new ChainServer(bc, port);
+                server.start();
+                System.out.format("Serving the chain on http://%s:%d/status %n", server.getHost(), server.getPort());
+            } catch (IOException e) {
+                System.out.println("**Error: cannot start the HTTP server: " + e.getMessage());
+            }
+        }
+        //menu option 1 hands transactions to a block pipeline instead of mining them itself, set with -Dblockchain.pipeline=true
+        BlockPipeline pipeline = null;
+        if (Boolean.getBoolean("blockchain.pipeline")) {
+            pipeline = new BlockPipeline(bc, miner);
+            pipeline.start();
+        }
 
         //menu
         do {
-            //set the chainhash
-            chainHash = bc.getLatestBlock().hash;
             printMenu();//keep prompting main menu
             String nextLine = input.next();
 
@@ -256,39 +1028,75 @@ public class BlockChain extends java.lang.Object {
                 switch (option) {
                     //view basic status
                     case 0:
-                        System.out.println("Current size of the chain: " + blockchain.size());
+                        System.out.println("Current size of the chain: " + bc.getChainSize());
                         System.out.println("Current hashes per second by this machine: " + bc.hashesPerSecond());
-                        System.out.format("Difficulty of most recent block: %d%n", bc.getLatestBlock().difficulty);
-                        System.out.println("Nonce for most recent block: " + bc.getLatestBlock().nonce);
-                        System.out.println("Chain hash: " + chainHash);
+                        System.out.println("Hash function: " + Hashing.describe());
+                        System.out.format("Difficulty of most recent block: %s%n", Difficulty.describe(bc.getLatestBlock().difficulty));
+                        if (retargetMillis > 0) {
+                            System.out.format("Difficulty of the next block: %s%n", Difficulty.describe(bc.nextDifficulty()));
+                        }
+                        System.out.println("Nonce for most recent block: " + bc.getLatestBlock().getNonce());
+                        System.out.println("Chain hash: " + bc.getChainHash());
+                        if (bc.blockchain instanceof ColumnarBlockList) {
+                            long bytes = ((ColumnarBlockList) bc.blockchain).getBytes();
+                            System.out.format("Block columns: %d bytes, %d per block %n", bytes, bytes / Math.max(1, bc.getChainSize()));
+                        }
+                        //counters of this session, also available over JMX
+                        System.out.print(ChainMetrics.get().snapshot());
                         break;
                     //add transaction to block chain
                     case 1:
-                        System.out.println("Enter difficulty > 0");
+                        if (retargetMillis > 0) {
+                            System.out.format("Enter difficulty > 0, or press enter for %s%n", Difficulty.describe(bc.nextDifficulty()));
+                        } else {
+                            System.out.println("Enter difficulty > 0");
+                        }
                         //check if the input is null
                         if (input.nextLine() != null || !input.nextLine().equals("")) {
                             //check if difficulty input is an integer
                             String diffStr = input.nextLine();
                             int difficulty;
                             try {
-                                difficulty = Integer.valueOf(diffStr);
-                                //everytime a block is added, index increments by one
-                                index++;
+                                if (retargetMillis > 0 && diffStr.trim().isEmpty()) {
+                                    difficulty = bc.nextDifficulty();
+                                } else {
+                                    //a number of zeroes, or a compact target such as 0x1f00ffff
+                                    difficulty = Integer.decode(diffStr.trim());
+                                    if (!Difficulty.isValid(difficulty)) {
+                                        throw new NumberFormatException(diffStr);
+                                    }
+                                }
                                 System.out.println("Enter transaction");
                                 String data = input.nextLine();
-                                //a new block added with the increased index, current timestamp, data entered, and difficulty entered
-                                bc.addBlock(new Block(index, bc.getTime(), data, difficulty));
+                                if (pipeline != null) {
+                                    try {
+                                        pipeline.submit(data, difficulty);
+                                        System.out.format("Transaction queued, %d blocks added by the pipeline so far %n", pipeline.getCommittedBlocks());
+                                    } catch (RuntimeException e) {
+                                        System.out.println("**Error: " + e.getMessage());
+                                    }
+                                    break;
+                                }
+                                if (mempool != null) {
+                                    //batched blocks: pool the transaction and mine once a batch is full or old enough
+                                    if (!mempool.add(data)) {
+                                        System.out.println("**Error: transaction discarded. The transaction pool is full.**");
+                                    } else if (mempool.isBatchReady()) {
+                                        mineBlock(bc, bc.createBatchBlock(difficulty), difficulty, miner);
+                                    } else {
+                                        System.out.format("Transaction pooled, %d transactions pending %n", mempool.size());
+                                    }
+                                    break;
+                                }
+                                //a new block with the next index, current timestamp, data entered, and difficulty entered
+                                Block block = new Block(bc.getChainSize(), bc.getTime(), data, difficulty);
                                 //set the previous hash
-                                bc.getLatestBlock().setPreviousHash(blockchain.get(blockchain.size() - 2).hash);
-                                //compute time consumed to add the block (total time to mine the block)
-                                long start = System.currentTimeMillis();
-                                bc.getLatestBlock().proofOfWork(difficulty);
-                                long end = System.currentTimeMillis();
-                                System.out.format("Total execution time to add this block was %d milliseconds %n", (end - start));
+                                block.setPreviousHash(bc.getLatestBlock().hash);
+                                mineBlock(bc, block, difficulty, miner);
 
                                 //difficulty input exception
                             } catch (NumberFormatException e) {
-                                System.out.println("**Error: entry discarded. Invalid input. Please enter an integer difficulty > 0!**");
+                                System.out.println("**Error: entry discarded. Invalid input. Please enter an integer difficulty from 1 to 64 or a compact target!**");
                             }
 
                         }
@@ -299,9 +1107,14 @@ public class BlockChain extends java.lang.Object {
                         System.out.println("Verifying entire chain");
                         //calculate the time consumed to verify the blockchain
                         long start = System.currentTimeMillis();
-                        System.out.println("Chain verification: " + bc.isChainValid());
+                        boolean valid = bc.isChainValid();
+                        System.out.println("Chain verification: " + valid);
                         long end = System.currentTimeMillis();
                         System.out.format("Total execution time required to verify the chain was %d milliseconds %n", (end - start));
+                        if (valid && bc.getStore() != null && bc.getCheckpoint() != null) {
+                            //the next start only verifies the blocks added after this
+                            bc.writeCheckpoint();
+                        }
                         break;
                     //view the blockchain (in json format)
                     case 3:
@@ -309,8 +1122,21 @@ public class BlockChain extends java.lang.Object {
 //                        String blockchainJson = new GsonBuilder().setPrettyPrinting().create().toJson(blockchain);
 //                        System.out.println(blockchainJson);
                         System.out.println("Viewing the blockchain");
-                        //return the json format of the blockchain
-                        System.out.println(bc.toString());
+                        //stream the json format of the blockchain one page at a time instead of building it in memory
+                        input.nextLine();
+                        ChainExporter exporter = new ChainExporter(bc);
+                        for (int from = 0; from < bc.getChainSize(); from += PAGE_SIZE) {
+                            exporter.setRange(from, from + PAGE_SIZE);
+                            exporter.export(System.out);
+                            System.out.println();
+                            if (from + PAGE_SIZE < bc.getChainSize()) {
+                                System.out.format("Blocks %d to %d of %d. Press Enter for the next page or q to stop %n",
+                                        from, from + PAGE_SIZE - 1, bc.getChainSize());
+                                if (!input.hasNextLine() || input.nextLine().trim().startsWith("q")) {
+                                    break;
+                                }
+                            }
+                        }
                         break;
                     //corrupt the blockchain by modifying a block's transaction data
                     case 4:
@@ -326,7 +1152,8 @@ public class BlockChain extends java.lang.Object {
                                 System.out.println("Enter new data for block " + blockID);
                                 String data = input.nextLine();
                                 //modify the selected block's transaction data
-                                blockchain.get(blockID).setData(data);
+                                bc.get(blockID).setData(data);
+                                bc.saveBlock(bc.get(blockID));
                                 System.out.println("Block " + blockID + " now holds " + data);
                                 //block id input exception
                             } catch (NumberFormatException e) {
@@ -340,7 +1167,7 @@ public class BlockChain extends java.lang.Object {
                     case 5:
                         //calculate time consumed to repair the chain
                         long starttime = System.currentTimeMillis();
-                        bc.repairChain();
+                        bc.repairChain(System.out);
                         long endtime = System.currentTimeMillis();
                         System.out.format("Repairing the entire chain %n "
                                 + "Total execution time required to repair the chain was %d milliseconds %n", (endtime - starttime));
@@ -350,6 +1177,14 @@ public class BlockChain extends java.lang.Object {
                     case 6:
                         //exit message when user chooses "6" on the main menu and exits the program
                         System.out.println("***Execution halts. Exits the program***");
+                        if (mempool != null && mempool.size() > 0) {
+                            //pending transactions would be lost, mine them at the difficulty of the last block
+                            System.out.format("Mining %d pending transactions before exit %n", mempool.size());
+                            int difficulty = bc.nextDifficulty();
+                            for (Block block = bc.createBatchBlock(difficulty); block != null; block = bc.createBatchBlock(difficulty)) {
+                                mineBlock(bc, block, difficulty, miner);
+                            }
+                        }
                         //set stop flag to true so that the program stops and no longer prompts menu
                         stop = true;
                         break;
@@ -360,9 +1195,41 @@ public class BlockChain extends java.lang.Object {
                 //exception handling for menu option - correct integer format but out of range. 
             } catch (InvalidDataRangeException e) {
 
+            } catch (IOException e) {
+                System.out.println("**Error: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.out.println("**Error: interrupted**");
+                stop = true;
             }
 
         } while (stop == false);//end blockchain menu interaction, end the program
+        if (pipeline != null) {
+            //the queued transactions are mined before the store is closed
+            try {
+                pipeline.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.out.println("**Error: " + e.getMessage());
+            }
+        }
+        if (server != null) {
+            server.stop(1);
+        }
+        if (miner != null) {
+            miner.shutdown();
+        }
+        if (bc.getStore() != null) {
+            try {
+                if (bc.getCheckpoint() != null) {
+                    ChainCheckpoint cp = bc.writeCheckpoint();
+                    System.out.format("Saved a checkpoint trusting %d blocks %n", cp.trusted + 1);
+                }
+                bc.getStore().close();
+            } catch (IOException e) {
+                System.out.println("**Error: cannot close the block store: " + e.getMessage());
+            }
+        }
 
     }//end main funtion
 
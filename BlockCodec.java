@@ -0,0 +1,356 @@
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * This is the BlockCodec class, a compact binary encoding of a Block. It is
+ * what the BlockStore writes and what nodes can send each other instead of
+ * the JSON text.
+ *
+ * Layout of one block:
+ *
+ * index - 4 bytes
+ * time - 8 bytes, milliseconds since 1/1/1970
+ * flags - 1 byte, how the nonce, hashes and data are written
+ * sub-millisecond nanoseconds of the timestamp - varint, usually 0
+ * difficulty - varint
+ * nonce - varint, absent if the block has no nonce; a nonce that does not fit
+ * in a long is written as the length and bytes of the BigInteger
+ * previousHash, hash - 32 raw bytes when they are 64 lowercase hex
+ * characters (every SHA256 hash of this chain), otherwise length prefixed
+ * UTF-8, absent if empty or null
+ * data - length prefixed UTF-8, absent if null
+ * only for a batched block: how the Merkle root is written (1 byte), the
+ * Merkle root like a hash, the number of transactions (varint) and each
+ * transaction as length prefixed UTF-8
+ *
+ * A mined block with a short transaction takes about 90 bytes, against more
+ * than 200 characters of JSON that does not even hold the block's own hash.
+ */
+final class BlockCodec {
+
+    //flags
+    private static final int HAS_NONCE = 1;
+    private static final int WIDE_NONCE = 1 << 1;
+    private static final int HAS_DATA = 1 << 2;
+    private static final int PREVIOUS_SHIFT = 3; //2 bits: how previousHash is written
+    private static final int HASH_SHIFT = 5; //2 bits: how hash is written
+    private static final int BATCHED = 1 << 7;
+    //how a hash is written
+    private static final int HASH_NULL = 0;
+    private static final int HASH_EMPTY = 1;
+    private static final int HASH_RAW = 2;
+    private static final int HASH_TEXT = 3;
+
+    private static final int HASH_BYTES = 32;
+    private static final int NANOS_PER_MILLI = 1_000_000;
+
+    private BlockCodec() {
+    }
+
+    /**
+     * the number of bytes encode will write for this block
+     *
+     * @param block
+     * @return
+     */
+    static int encodedSize(Block block) {
+        int size = 4 + 8 + 1;
+        size += varintSize(block.timeStamp.getNanos() % NANOS_PER_MILLI);
+        size += varintSize(block.difficulty & 0xffffffffL);
+        if (block.hasNonce) {
+            if (block.wideNonce != null) {
+                int length = block.wideNonce.toByteArray().length;
+                size += varintSize(length) + length;
+            } else {
+                size += varintSize(block.nonce);
+            }
+        }
+        size += hashSize(block.previousHash) + hashSize(block.hash);
+        if (block.data != null) {
+            int length = utf8Length(block.data);
+            size += varintSize(length) + length;
+        }
+        if (block.transactions != null) {
+            size += 1 + hashSize(block.merkleRoot) + varintSize(block.transactions.size());
+            for (String tx : block.transactions) {
+                int length = utf8Length(tx);
+                size += varintSize(length) + length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the block at the position of the buffer, which needs
+     * encodedSize(block) bytes of room.
+     *
+     * @param block
+     * @param out
+     */
+    static void encode(Block block, ByteBuffer out) {
+        int previousMode = hashMode(block.previousHash);
+        int hashMode = hashMode(block.hash);
+        int flags = previousMode << PREVIOUS_SHIFT | hashMode << HASH_SHIFT;
+        if (block.hasNonce) {
+            flags |= HAS_NONCE;
+            if (block.wideNonce != null) {
+                flags |= WIDE_NONCE;
+            }
+        }
+        if (block.data != null) {
+            flags |= HAS_DATA;
+        }
+        if (block.transactions != null) {
+            flags |= BATCHED;
+        }
+        out.putInt(block.index);
+        out.putLong(block.timeStamp.getTime());
+        out.put((byte) flags);
+        putVarint(out, block.timeStamp.getNanos() % NANOS_PER_MILLI);
+        putVarint(out, block.difficulty & 0xffffffffL);
+        if (block.hasNonce) {
+            if (block.wideNonce != null) {
+                putBytes(out, block.wideNonce.toByteArray());
+            } else {
+                putVarint(out, block.nonce);
+            }
+        }
+        putHash(out, block.previousHash, previousMode);
+        putHash(out, block.hash, hashMode);
+        if (block.data != null) {
+            putBytes(out, block.data.getBytes(StandardCharsets.UTF_8));
+        }
+        if (block.transactions != null) {
+            int rootMode = hashMode(block.merkleRoot);
+            out.put((byte) rootMode);
+            putHash(out, block.merkleRoot, rootMode);
+            putVarint(out, block.transactions.size());
+            for (String tx : block.transactions) {
+                putBytes(out, tx.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * the block as a new byte array
+     *
+     * @param block
+     * @return
+     */
+    static byte[] encode(Block block) {
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(block));
+        encode(block, out);
+        return out.array();
+    }
+
+    /**
+     * The time of an encoded block, read from the start of its bytes without
+     * decoding the block. The buffer's position is not moved.
+     *
+     * @param in
+     * @return milliseconds since 1/1/1970
+     */
+    static long time(ByteBuffer in) {
+        return in.getLong(in.position() + 4);
+    }
+
+    /**
+     * The difficulty of an encoded block, read from the start of its bytes
+     * without decoding the block. The buffer's position is not moved.
+     *
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the bytes are not a block
+     */
+    static int difficulty(ByteBuffer in) {
+        ByteBuffer header = in.duplicate();
+        header.position(header.position() + 13); //index, time and flags
+        getVarint(header); //sub-millisecond nanoseconds
+        return (int) getVarint(header);
+    }
+
+    /**
+     * Reads one block from the position of the buffer. The block is restored
+     * as it was written, nothing is hashed again.
+     *
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the bytes are not a block
+     */
+    static Block decode(ByteBuffer in) {
+        try {
+            int index = in.getInt();
+            long millis = in.getLong();
+            int flags = in.get() & 0xff;
+            int subMillis = (int) getVarint(in);
+            Timestamp timestamp = new Timestamp(millis);
+            //the timestamp's nanos include its milliseconds
+            timestamp.setNanos(timestamp.getNanos() + subMillis);
+            int difficulty = (int) getVarint(in);
+            BigInteger nonce = null;
+            if ((flags & HAS_NONCE) != 0) {
+                nonce = (flags & WIDE_NONCE) != 0 ? new BigInteger(getBytes(in)) : BigInteger.valueOf(getVarint(in));
+            }
+            String previousHash = getHash(in, (flags >> PREVIOUS_SHIFT) & 3);
+            String hash = getHash(in, (flags >> HASH_SHIFT) & 3);
+            String data = (flags & HAS_DATA) != 0 ? new String(getBytes(in), StandardCharsets.UTF_8) : null;
+            List<String> transactions = null;
+            String merkleRoot = null;
+            if ((flags & BATCHED) != 0) {
+                merkleRoot = getHash(in, in.get() & 3);
+                long count = getVarint(in);
+                if (count < 0 || count > in.remaining()) {
+                    throw new IllegalArgumentException("bad transaction count " + count);
+                }
+                transactions = new ArrayList<>((int) count);
+                for (long i = 0; i < count; i++) {
+                    transactions.add(new String(getBytes(in), StandardCharsets.UTF_8));
+                }
+            }
+            return Block.restore(index, timestamp, data, previousHash, nonce, difficulty, hash, transactions, merkleRoot);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated block", e);
+        }
+    }
+
+    //a 64 char lowercase hex hash is written raw
+    private static int hashMode(String hash) {
+        if (hash == null) {
+            return HASH_NULL;
+        }
+        if (hash.isEmpty()) {
+            return HASH_EMPTY;
+        }
+        if (hash.length() != 2 * HASH_BYTES) {
+            return HASH_TEXT;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return HASH_TEXT;
+            }
+        }
+        return HASH_RAW;
+    }
+
+    private static int hashSize(String hash) {
+        switch (hashMode(hash)) {
+            case HASH_RAW:
+                return HASH_BYTES;
+            case HASH_TEXT:
+                int length = utf8Length(hash);
+                return varintSize(length) + length;
+            default:
+                return 0;
+        }
+    }
+
+    private static void putHash(ByteBuffer out, String hash, int mode) {
+        if (mode == HASH_RAW) {
+            for (int i = 0; i < HASH_BYTES; i++) {
+                out.put((byte) (Character.digit(hash.charAt(2 * i), 16) << 4 | Character.digit(hash.charAt(2 * i + 1), 16)));
+            }
+        } else if (mode == HASH_TEXT) {
+            putBytes(out, hash.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String getHash(ByteBuffer in, int mode) {
+        switch (mode) {
+            case HASH_EMPTY:
+                return "";
+            case HASH_RAW:
+                byte[] raw = new byte[HASH_BYTES];
+                in.get(raw);
+                return MiningHasher.toHex(raw);
+            case HASH_TEXT:
+                return new String(getBytes(in), StandardCharsets.UTF_8);
+            default:
+                return null;
+        }
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] b) {
+        putVarint(out, b.length);
+        out.put(b);
+    }
+
+    private static byte[] getBytes(ByteBuffer in) {
+        long length = getVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad length " + length);
+        }
+        byte[] b = new byte[(int) length];
+        in.get(b);
+        return b;
+    }
+
+    /**
+     * writes an unsigned LEB128 varint, 7 bits per byte
+     *
+     * @param out
+     * @param value
+     */
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * reads an unsigned LEB128 varint
+     *
+     * @param in
+     * @return
+     */
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint longer than 64 bits");
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    //UTF-8 length without encoding the String
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; //a lone surrogate is encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+}//end class
@@ -0,0 +1,88 @@
+/**
+ *
+ * This is the BlockHeader class, the part of a Block its hash covers without
+ * the transactions: index, timestamp, data or Merkle root, previousHash, nonce
+ * and difficulty, plus the hash itself. A chain of headers is enough to check
+ * proof of work and linkage, and with a MerkleProof to check that a
+ * transaction is in a block, without the block bodies.
+ *
+ * Fields are kept as the text that goes into the hash, so the hash can be
+ * computed exactly like Block.calculateHash does.
+ */
+final class BlockHeader {
+
+    private final int index;
+    private final String timestamp;
+    private final String payload; //data of a plain block, Merkle root of a batched block
+    private final boolean batched;
+    private final String previousHash;
+    private final String nonce;
+    private final int difficulty;
+    private final String hash;
+
+    /**
+     * @param index
+     * @param timestamp the timestamp as Timestamp.toString prints it
+     * @param payload
+     * @param batched
+     * @param previousHash
+     * @param nonce the nonce as decimal text
+     * @param difficulty
+     * @param hash
+     */
+    BlockHeader(int index, String timestamp, String payload, boolean batched, String previousHash, String nonce, int difficulty, String hash) {
+        this.index = index;
+        this.timestamp = timestamp;
+        this.payload = payload;
+        this.batched = batched;
+        this.previousHash = previousHash;
+        this.nonce = nonce;
+        this.difficulty = difficulty;
+        this.hash = hash;
+    }
+
+    /**
+     * the header of a block
+     *
+     * @param block
+     * @return
+     */
+    static BlockHeader of(Block block) {
+        return new BlockHeader(block.index, String.valueOf(block.timeStamp), block.payload(), block.isBatched(),
+                block.previousHash, block.nonceString(), block.difficulty, block.hash);
+    }
+
+    /**
+     * the hash of this header's fields, computed like Block.calculateHash
+     *
+     * @return
+     */
+    public String computeHash() {
+        return Block.applySha256((batched ? Block.BATCHED_DOMAIN : "") + index + timestamp + payload + previousHash + nonce + difficulty);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    public String getPreviousHash() {
+        return previousHash;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+}//end class
@@ -0,0 +1,106 @@
+import java.util.List;
+
+/**
+ *
+ * This is the BlockIndex interface of the lookup indexes a BlockChain keeps
+ * next to its blocks: block hash to block index, transaction to the blocks
+ * and positions holding it, and block time to blocks. The chain calls add for
+ * every block it appends and update for every block that changes (through a
+ * setter, like the corruption of menu option 4, or through repairChain), so
+ * lookups never see stale entries.
+ */
+interface BlockIndex {
+
+    /**
+     * where a transaction is: the index of its block and its position in the
+     * block; locations sort in chain order
+     */
+    final class TxLocation implements Comparable<TxLocation> {
+
+        final int block;
+        final int position;
+
+        TxLocation(int block, int position) {
+            this.block = block;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(TxLocation o) {
+            return block != o.block ? Integer.compare(block, o.block) : Integer.compare(position, o.position);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TxLocation && ((TxLocation) o).block == block && ((TxLocation) o).position == position;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * block + position;
+        }
+
+        @Override
+        public String toString() {
+            return "block " + block + " position " + position;
+        }
+    }
+
+    /**
+     * indexes a block appended to the chain
+     *
+     * @param block
+     */
+    void add(Block block);
+
+    /**
+     * takes a block out of the index, when the end of the chain is replaced by
+     * another branch
+     *
+     * @param block
+     */
+    void remove(Block block);
+
+    /**
+     * indexes a block of the chain again after it changed
+     *
+     * @param block
+     */
+    void update(Block block);
+
+    /**
+     * forgets every block
+     */
+    void clear();
+
+    /**
+     * @param hash
+     * @return the index of the block with this hash, -1 if there is none
+     */
+    int findBlockByHash(String hash);
+
+    /**
+     * @param tx
+     * @return every place the transaction is, in chain order, empty if none
+     */
+    List<TxLocation> findTransaction(String tx);
+
+    /**
+     * @param fromMillis
+     * @param toMillis
+     * @return the indexes of the blocks with from <= time <= to, in chain
+     * order
+     */
+    List<Integer> findBlocksByTime(long fromMillis, long toMillis);
+
+    /**
+     * the id of a transaction: the hex SHA256 of its text
+     *
+     * @param tx
+     * @return
+     */
+    static String txId(String tx) {
+        return Block.applySha256(tx);
+    }
+
+}//end interface
@@ -0,0 +1,131 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ *
+ * This is the BlockList class, the list of blocks of a chain held in memory.
+ * Readers never lock: the blocks are kept in fixed size segments, and the
+ * segments together with the number of blocks are published as one immutable
+ * Tip through a volatile field. A reader that takes the tip once sees a
+ * consistent chain of tip.size blocks, however many blocks are appended while
+ * it reads.
+ *
+ * Writers are serialized by the chain. An append stores the block in a free
+ * slot no reader can see yet and then publishes a new tip, so the block
+ * appears to readers in a single step. The segment array is copied when it
+ * grows (copy on write), the segments themselves are shared by every tip.
+ *
+ * The end of the list can be replaced by another branch of the chain (a fork
+ * with more work). The segments from the fork on are copied before they are
+ * written, so a reader of an older tip still sees the blocks it had.
+ */
+final class BlockList extends AbstractList<Block> implements RandomAccess {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS; //blocks per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * an immutable view of the list: its segments and the number of blocks in
+     * them
+     */
+    static final class Tip extends AbstractList<Block> implements RandomAccess {
+
+        private final Block[][] segments;
+        private final int size;
+
+        private Tip(Block[][] segments, int size) {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        @Override
+        public Block get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("block " + i + " of " + size);
+            }
+            return segments[i >>> SEGMENT_BITS][i & SEGMENT_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private volatile Tip tip = new Tip(new Block[0][], 0);
+
+    /**
+     * the blocks as they are now; later appends are not seen through it
+     *
+     * @return
+     */
+    public Tip snapshot() {
+        return tip;
+    }
+
+    @Override
+    public Block get(int i) {
+        return tip.get(i);
+    }
+
+    @Override
+    public int size() {
+        return tip.size;
+    }
+
+    /**
+     * Appends a block and publishes it. Callers must not append at the same
+     * time. Blocks are never replaced or removed, so a tip stays valid.
+     *
+     * @param b
+     * @return
+     */
+    @Override
+    public boolean add(Block b) {
+        Tip t = tip;
+        Block[][] segments = t.segments;
+        int segment = t.size >>> SEGMENT_BITS;
+        if (segment == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length + 1);
+            segments[segment] = new Block[SEGMENT_SIZE];
+        }
+        segments[segment][t.size & SEGMENT_MASK] = b;
+        //the volatile write makes the block visible together with the new size
+        tip = new Tip(segments, t.size + 1);
+        return true;
+    }
+
+    /**
+     * Replaces the blocks from index from to the end with the given blocks and
+     * publishes them in one step. Callers must not append at the same time.
+     *
+     * @param from the first block replaced, at most size()
+     * @param blocks
+     */
+    public void replaceFrom(int from, List<Block> blocks) {
+        Tip t = tip;
+        if (from < 0 || from > t.size) {
+            throw new IndexOutOfBoundsException("block " + from + " of " + t.size);
+        }
+        int size = from + blocks.size();
+        int kept = from >>> SEGMENT_BITS; //segments before this one are not touched
+        Block[][] segments = Arrays.copyOf(t.segments, (size + SEGMENT_MASK) >>> SEGMENT_BITS);
+        for (int s = kept; s < segments.length; s++) {
+            //older tips may still read the old segments
+            segments[s] = s == kept && s < t.segments.length ? t.segments[s].clone() : new Block[SEGMENT_SIZE];
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            int at = from + i;
+            segments[at >>> SEGMENT_BITS][at & SEGMENT_MASK] = blocks.get(i);
+        }
+        if (kept < segments.length) {
+            //a shorter branch leaves no stale blocks behind the new end of the last segment
+            Arrays.fill(segments[segments.length - 1], ((size - 1) & SEGMENT_MASK) + 1, SEGMENT_SIZE, null);
+        }
+        tip = new Tip(segments, size);
+    }
+
+}//end class
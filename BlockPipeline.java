@@ -0,0 +1,602 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * This is the BlockPipeline class that produces blocks in stages instead of
+ * one after the other. Transactions go through bounded queues from stage to
+ * stage, each stage on its own thread:
+ *
+ * intake - submit() queues a transaction, and blocks when the queue is full
+ * assemble - groups queued transactions into a block and hashes their Merkle
+ * tree
+ * mine - links the block to the block mined before it and finds its proof of
+ * work
+ * verify - checks the hash, Merkle root and proof of work of the mined block
+ * commit - adds the block to the chain, which indexes it and writes it to the
+ * block store
+ *
+ * So while block N is mined, block N+1 is already assembled and block N-1 is
+ * being verified, indexed and written. A full queue makes the stage before it
+ * wait, all the way back to submit(), so a fast producer cannot run ahead of
+ * the miner without bound (backpressure).
+ *
+ * The mine stage links each block to the block it mined last, not to the tip
+ * of the chain. If something else adds a block to the chain meanwhile, the
+ * commit stage mines the block again on the new tip and the mine stage goes
+ * on from there.
+ *
+ * With setSerial(true) one thread runs all the stages for one block before it
+ * starts the next, which is what menu option 1 does; it is the baseline the
+ * pipeline is measured against.
+ *
+ * A stage that throws (a block store that cannot be written, for instance)
+ * stops the pipeline: the first failure is kept, the other stages stop
+ * instead of waiting on their queues, and submit() and close() throw it.
+ */
+final class BlockPipeline {
+
+    //a transaction waiting for its block
+    private static final class Item {
+
+        final String tx;
+        final int difficulty; //0 for the chain's next difficulty
+        final long submitted = System.nanoTime();
+
+        Item(String tx, int difficulty) {
+            this.tx = tx;
+            this.difficulty = difficulty;
+        }
+    }
+
+    //a block on its way through the stages, with the transactions it holds
+    private static final class Pending {
+
+        final Block block;
+        final List<Item> items;
+
+        Pending(Block block, List<Item> items) {
+            this.block = block;
+            this.items = items;
+        }
+    }
+
+    private static final Item END_OF_INTAKE = new Item(null, 0);
+    private static final Pending END = new Pending(null, null);
+    private static final long POLL_MILLIS = 50; //how often a stage waiting on a queue checks for a failed stage
+
+    private final BlockChain chain;
+    private final ParallelMiner miner; //null mines on the stage thread
+    private int queueCapacity = Integer.getInteger("blockchain.pipeline.queue", 16);
+    private int batchSize;
+    private boolean serial;
+    private BlockingQueue<Item> intake;
+    private BlockingQueue<Pending> assembled;
+    private BlockingQueue<Pending> mined;
+    private BlockingQueue<Pending> verified;
+    private final List<Thread> stages = new ArrayList<>();
+    private volatile boolean closed;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>(); //the first stage failure
+    private final AtomicReference<Block> relinkTo = new AtomicReference<>(); //set by commit after mining a block again
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong(); //submits that had to wait for room in the intake queue
+    private final AtomicLong committedBlocks = new AtomicLong();
+    private final AtomicLong committedTransactions = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long[] busyNanos = new long[4]; //assemble, mine, verify, commit; each written by one thread
+    private final Histogram latency = new Histogram(); //submit to commit, nanoseconds
+
+    /**
+     * @param chain the chain the blocks are added to
+     * @param miner the miner of the blocks, null to mine on the stage thread
+     */
+    BlockPipeline(BlockChain chain, ParallelMiner miner) {
+        this.chain = chain;
+        this.miner = miner;
+        batchSize = chain.getMempool() != null ? chain.getMempool().getMaxTransactions() : 1;
+    }
+
+    /**
+     * queueCapacity - the most transactions waiting for intake and the most
+     * blocks waiting between two stages, set before start
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * batchSize - the most transactions in one block; above 1 the blocks are
+     * batched blocks with a Merkle root. Set before start
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * serial - whether one thread runs every stage for a block before the
+     * next block, set before start
+     *
+     * @param serial
+     */
+    public void setSerial(boolean serial) {
+        this.serial = serial;
+    }
+
+    /**
+     * starts the stage threads
+     */
+    public void start() {
+        if (queueCapacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("queue capacity and batch size must be > 0");
+        }
+        intake = new ArrayBlockingQueue<>(queueCapacity);
+        if (serial) {
+            startStage("pipeline-serial", this::runSerial);
+            return;
+        }
+        assembled = new ArrayBlockingQueue<>(queueCapacity);
+        mined = new ArrayBlockingQueue<>(queueCapacity);
+        verified = new ArrayBlockingQueue<>(queueCapacity);
+        startStage("pipeline-assemble", this::runAssemble);
+        startStage("pipeline-mine", this::runMine);
+        startStage("pipeline-verify", this::runVerify);
+        startStage("pipeline-commit", this::runCommit);
+    }
+
+    private void startStage(String name, Runnable stage) {
+        Thread t = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (RuntimeException | Error e) {
+                //the other stages see it on their next wait and stop
+                failure.compareAndSet(null, e);
+                closed = true;
+            }
+        }, name);
+        t.setDaemon(true);
+        stages.add(t);
+        t.start();
+    }
+
+    /**
+     * Queues a transaction for a block, waiting while the intake queue is
+     * full.
+     *
+     * @param tx
+     * @param difficulty the difficulty of its block, 0 for the chain's next
+     * difficulty
+     * @throws InterruptedException
+     * @throws RuntimeException if a stage failed, with its failure as the
+     * cause
+     */
+    public void submit(String tx, int difficulty) throws InterruptedException {
+        throwFailure();
+        if (closed) {
+            throw new IllegalStateException("pipeline is closed");
+        }
+        Item item = new Item(tx, difficulty);
+        if (!intake.offer(item)) {
+            stalls.incrementAndGet();
+            if (!put(intake, item)) {
+                throwFailure();
+            }
+        }
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Stops taking transactions and waits until every queued one is in a
+     * committed block.
+     *
+     * @throws InterruptedException
+     * @throws RuntimeException if a stage failed, with its failure as the
+     * cause; the transactions not committed by then are dropped
+     */
+    public void close() throws InterruptedException {
+        if (!closed) {
+            closed = true;
+            put(intake, END_OF_INTAKE);
+        }
+        for (Thread t : stages) {
+            t.join();
+        }
+        throwFailure();
+    }
+
+    /**
+     * the failure that stopped the pipeline
+     *
+     * @return null if no stage failed
+     */
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    private void throwFailure() {
+        Throwable f = failure.get();
+        if (f != null) {
+            throw new RuntimeException("the pipeline stopped, a stage failed: " + f, f);
+        }
+    }
+
+    //waits for the next element of a queue, end once a stage failed
+    private <T> T take(BlockingQueue<T> queue, T end) throws InterruptedException {
+        while (failure.get() == null) {
+            T next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (next != null) {
+                return next;
+            }
+        }
+        return end;
+    }
+
+    //waits for room in a queue, false once a stage failed
+    private <T> boolean put(BlockingQueue<T> queue, T element) throws InterruptedException {
+        while (failure.get() == null) {
+            if (queue.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runSerial() {
+        Block last = chain.getLatestBlock();
+        List<Item> carry = new ArrayList<>();
+        try {
+            while (true) {
+                Pending p = assemble(carry);
+                if (p == END) {
+                    return;
+                }
+                last = mine(p, last);
+                if (verify(p)) {
+                    last = commit(p);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runAssemble() {
+        List<Item> carry = new ArrayList<>();
+        try {
+            while (true) {
+                Pending p = assemble(carry);
+                if (!put(assembled, p) || p == END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runMine() {
+        Block last = chain.getLatestBlock();
+        try {
+            while (true) {
+                Pending p = take(assembled, END);
+                if (p != END) {
+                    last = mine(p, last);
+                }
+                if (!put(mined, p) || p == END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runVerify() {
+        try {
+            while (true) {
+                Pending p = take(mined, END);
+                if (p == END || verify(p)) {
+                    if (!put(verified, p) || p == END) {
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runCommit() {
+        try {
+            while (true) {
+                Pending p = take(verified, END);
+                if (p == END) {
+                    return;
+                }
+                commit(p);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //the next block's transactions, all at the difficulty of the first one; carry holds one left for the next block
+    private Pending assemble(List<Item> carry) throws InterruptedException {
+        List<Item> items = new ArrayList<>();
+        if (!carry.isEmpty()) {
+            items.add(carry.remove(0));
+        } else {
+            Item first = take(intake, END_OF_INTAKE);
+            if (first == END_OF_INTAKE) {
+                return END;
+            }
+            items.add(first);
+        }
+        long start = System.nanoTime();
+        //whatever else is queued already goes into the same block, the stage does not wait for a full batch
+        while (items.size() < batchSize) {
+            Item next = intake.peek();
+            if (next == null || next == END_OF_INTAKE || next.difficulty != items.get(0).difficulty) {
+                break;
+            }
+            items.add(intake.poll());
+        }
+        Block block;
+        if (batchSize > 1) {
+            List<String> txs = new ArrayList<>(items.size());
+            for (Item item : items) {
+                txs.add(item.tx);
+            }
+            block = new Block(0, chain.getTime(), txs, items.get(0).difficulty); //the Merkle root is hashed here
+        } else {
+            block = new Block(0, chain.getTime(), items.get(0).tx, items.get(0).difficulty);
+        }
+        busyNanos[0] += System.nanoTime() - start;
+        return new Pending(block, items);
+    }
+
+    //links the block to the last one mined (or to a block commit mined again) and mines it
+    private Block mine(Pending p, Block last) {
+        long start = System.nanoTime();
+        Block relinked = relinkTo.getAndSet(null);
+        if (relinked != null && relinked.index >= last.index) {
+            last = relinked;
+        }
+        Block b = p.block;
+        b.setIndex(last.index + 1);
+        b.setPreviousHash(last.hash);
+        //the block time starts now, not when it was assembled
+        b.setTimestamp(chain.getTime());
+        proofOfWork(b, p.items.get(0).difficulty);
+        busyNanos[1] += System.nanoTime() - start;
+        return b;
+    }
+
+    private void proofOfWork(Block b, int difficulty) {
+        if (difficulty == 0) {
+            difficulty = chain.nextDifficulty();
+        }
+        b.setDifficulty(difficulty);
+        if (miner != null) {
+            miner.mine(b, difficulty);
+        } else {
+            b.proofOfWork(difficulty);
+        }
+    }
+
+    //checks the mined block on its own, its link is checked when it is added
+    private boolean verify(Pending p) {
+        long start = System.nanoTime();
+        boolean ok = ChainValidator.problem(p.block, null) == null;
+        if (!ok) {
+            failed.incrementAndGet();
+        }
+        busyNanos[2] += System.nanoTime() - start;
+        return ok;
+    }
+
+    //adds the block to the chain, mining it again on the tip if another block was added first
+    private Block commit(Pending p) {
+        long start = System.nanoTime();
+        Block b = p.block;
+        if (!chain.tryAddBlock(b)) {
+            conflicts.incrementAndGet();
+            do {
+                Block tip = chain.getLatestBlock();
+                b.setIndex(tip.index + 1);
+                b.setPreviousHash(tip.hash);
+                b.setTimestamp(chain.getTime());
+                proofOfWork(b, p.items.get(0).difficulty);
+            } while (!chain.tryAddBlock(b));
+            relinkTo.set(b);
+        }
+        long now = System.nanoTime();
+        for (Item item : p.items) {
+            latency.record(now - item.submitted);
+        }
+        committedBlocks.incrementAndGet();
+        committedTransactions.addAndGet(p.items.size());
+        busyNanos[3] += now - start;
+        return b;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    public long getCommittedBlocks() {
+        return committedBlocks.get();
+    }
+
+    public long getCommittedTransactions() {
+        return committedTransactions.get();
+    }
+
+    /**
+     * the blocks that had to be mined again because another block was added
+     * first
+     *
+     * @return
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * the blocks that failed verification and were dropped
+     *
+     * @return
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * the time from submit to commit of the transactions, nanoseconds
+     *
+     * @return
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * the time each stage spent working, assemble, mine, verify and commit,
+     * nanoseconds; read it after close
+     *
+     * @return
+     */
+    public long[] getBusyNanos() {
+        return busyNanos.clone();
+    }
+
+    /**
+     * The load generator: producer threads submit transactions as fast as the
+     * pipeline takes them for a number of seconds, then the pipeline is
+     * drained and the sustained rate is printed. -Dblockchain.store=file
+     * commits to a block store as the menu does.
+     *
+     * run: java BlockPipeline [-seconds 10] [-difficulty 3] [-batch 1]
+     * [-producers 2] [-queue 16] [-threads 1] [-serial]
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        long seconds = 10;
+        int difficulty = 3;
+        int batch = 1;
+        int producers = 2;
+        int queue = Integer.getInteger("blockchain.pipeline.queue", 16);
+        int threads = BlockChain.miningThreads;
+        boolean serial = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-seconds":
+                    seconds = Long.parseLong(args[++i]);
+                    break;
+                case "-difficulty":
+                    difficulty = Integer.decode(args[++i]);
+                    break;
+                case "-batch":
+                    batch = Integer.parseInt(args[++i]);
+                    break;
+                case "-producers":
+                    producers = Integer.parseInt(args[++i]);
+                    break;
+                case "-queue":
+                    queue = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-serial":
+                    serial = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        BlockChain bc = new BlockChain();
+        BlockStore store = BlockStore.fromSystemProperties();
+        bc.setStore(store);
+        if (store != null) {
+            bc.loadFromStore();
+        }
+        if (bc.getChainSize() == 0) {
+            Block genesis = new Block(0, bc.getTime(), "Genesis", 2);
+            genesis.proofOfWork(2);
+            bc.addBlock(genesis);
+        }
+        ParallelMiner miner = threads > 1 ? new ParallelMiner(threads) : null;
+        BlockPipeline pipeline = new BlockPipeline(bc, miner);
+        pipeline.setQueueCapacity(queue);
+        pipeline.setBatchSize(batch);
+        pipeline.setSerial(serial);
+        pipeline.start();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> load = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final int d = difficulty;
+            Thread t = new Thread(() -> {
+                try {
+                    for (long n = 0; System.nanoTime() < end; n++) {
+                        pipeline.submit("producer " + producer + " pays " + n, d);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-" + p);
+            load.add(t);
+            t.start();
+        }
+        for (Thread t : load) {
+            t.join();
+        }
+        pipeline.close();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (miner != null) {
+            miner.shutdown();
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.out.println("**Error: cannot close the block store: " + e.getMessage());
+            }
+        }
+
+        Histogram latency = pipeline.getLatency();
+        long[] busy = pipeline.getBusyNanos();
+        System.out.format(Locale.ROOT, "%s, difficulty %d, batch %d, queue %d: %d blocks, %d transactions in %.2f s %n",
+                serial ? "serial" : "pipelined", difficulty, batch, queue,
+                pipeline.getCommittedBlocks(), pipeline.getCommittedTransactions(), elapsed);
+        System.out.format(Locale.ROOT, "  %.1f blocks per second, %.1f transactions per second, %d submits waited for room %n",
+                pipeline.getCommittedBlocks() / elapsed, pipeline.getCommittedTransactions() / elapsed, pipeline.getStalls());
+        System.out.format(Locale.ROOT, "  submit to commit: p50 %.2f ms, p99 %.2f ms, max %.2f ms %n",
+                latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getMax() / 1e6);
+        System.out.format(Locale.ROOT, "  busy: assemble %.0f ms, mine %.0f ms, verify %.0f ms, commit %.0f ms %n",
+                busy[0] / 1e6, busy[1] / 1e6, busy[2] / 1e6, busy[3] / 1e6);
+        System.out.format("  chain valid: %b, %d blocks mined again, %d failed verification %n",
+                bc.isChainValid(), pipeline.getConflicts(), pipeline.getFailed());
+    }
+
+}//end class
@@ -0,0 +1,548 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * This is the BlockStore class that keeps the blocks of a chain in an
+ * append-only file, so a chain survives a restart without being mined again.
+ *
+ * The file starts with the magic "BLKS" and a format version. After that come
+ * the records, each one is the length of its payload (int), the CRC32 of the
+ * payload (int) and the payload, which is one block encoded by BlockCodec.
+ * Records are only ever appended. A block that changes after it was stored (corrupted or
+ * repaired) is appended again, and when the file is read the last record of an
+ * index wins.
+ *
+ * Loading or scanning the file also finds the offset of the latest record of
+ * every block, so single blocks can be read back without holding the chain
+ * in memory.
+ *
+ * A ChainCheckpoint remembers the offsets and the end of the file, so a
+ * store can be resumed from there and only the records appended since are
+ * read. compact() rewrites a store with only the latest record of each block.
+ *
+ * A crash can leave the last record half written. A last record that is cut
+ * short or whose checksum does not match is dropped, and the file is
+ * truncated there so the next append starts on a clean record boundary. A bad
+ * record with intact records after it is not a torn write, reading fails
+ * with its offset and the file is left as it is.
+ */
+final class BlockStore implements Closeable {
+
+    private static final int MAGIC = 0x424c4b53; //"BLKS"
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER = 8; //magic and version
+    private static final int RECORD_HEADER = 8; //length and crc
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    private static final long MAP_WINDOW = 1L << 30; //bytes mapped at a time when reading
+
+    /**
+     * when appended records are forced to the disk
+     */
+    enum Fsync {
+        ALWAYS, //after every append, nothing is lost but every append waits for the disk
+        BATCH, //after every syncEvery appends and on close
+        NEVER //only on close, the operating system writes the rest when it wants
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Fsync fsync;
+    private final int syncEvery;
+    private long end; //offset where the next record goes
+    private int unsynced; //records appended since the last force
+    private long truncatedBytes; //bytes cut off a torn tail when the store was opened
+    private ByteBuffer buffer = ByteBuffer.allocate(4096); //reused to encode records
+    private long[] offsets = new long[0]; //offset of the latest record of each block, by block index
+    private int count; //number of blocks in the store
+
+    /**
+     * Opens the store file, creating it if it does not exist.
+     *
+     * @param path
+     * @param fsync
+     * @param syncEvery the number of appends between forces for Fsync.BATCH
+     * @throws IOException
+     */
+    BlockStore(Path path, Fsync fsync, int syncEvery) throws IOException {
+        this.path = path;
+        this.fsync = fsync;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, FILE_HEADER - header.remaining());
+            }
+            channel.force(true);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < FILE_HEADER || header.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException(path + " is not a block store");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                channel.close();
+                throw new IOException(path + " has unsupported version " + version);
+            }
+        }
+        end = channel.size();
+    }
+
+    /**
+     * Opens a store configured by the system properties blockchain.store (the
+     * file), blockchain.store.fsync (always, batch or never, default batch)
+     * and blockchain.store.syncEvery (default 64).
+     *
+     * @return null if no store file is configured
+     * @throws IOException
+     */
+    static BlockStore fromSystemProperties() throws IOException {
+        String file = System.getProperty("blockchain.store");
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        Fsync fsync = Fsync.valueOf(System.getProperty("blockchain.store.fsync", "batch").toUpperCase());
+        return new BlockStore(Path.of(file), fsync, Integer.getInteger("blockchain.store.syncEvery", 64));
+    }
+
+    /**
+     * Reads every block of the store. Blocks appended again replace the
+     * earlier record of their index. A torn tail is truncated.
+     *
+     * @return the blocks in index order
+     * @throws IOException
+     */
+    public List<Block> load() throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        walk((offset, payload) -> {
+            Block b = decode(payload, offset);
+            if (b.index == blocks.size()) {
+                blocks.add(b);
+            } else {
+                blocks.set(b.index, b);
+            }
+        });
+        return blocks;
+    }
+
+    /**
+     * Finds the last record of every block without keeping any block in
+     * memory, so blocks can then be read one at a time with read(i). A torn
+     * tail is truncated.
+     *
+     * @return the number of blocks in the store
+     * @throws IOException
+     */
+    public int scan() throws IOException {
+        walk((offset, payload) -> {
+        });
+        return count;
+    }
+
+    /**
+     * Like scan, but only reads the records after a checkpoint: the offsets
+     * of the first count blocks and the end of the file are taken from the
+     * checkpoint.
+     *
+     * @param end the end of the file when the checkpoint was written
+     * @param checkpointOffsets the offsets of the blocks then
+     * @param checkpointCount the number of blocks then
+     * @param changed told the index of every block the records after the
+     * checkpoint hold
+     * @return the number of blocks in the store
+     * @throws IOException if the file does not match the checkpoint
+     */
+    public int resume(long end, long[] checkpointOffsets, int checkpointCount, IntConsumer changed) throws IOException {
+        if (end < FILE_HEADER || end > channel.size() || checkpointCount > checkpointOffsets.length) {
+            throw new IOException(path + " does not match the checkpoint");
+        }
+        if (checkpointCount > 0) {
+            //the last block must still be where the checkpoint says, a compacted or replaced file is not
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + 4);
+            long last = checkpointOffsets[checkpointCount - 1];
+            if (last < FILE_HEADER || last + header.capacity() > end) {
+                throw new IOException(path + " does not match the checkpoint");
+            }
+            readFully(header, last);
+            if (header.getInt(RECORD_HEADER) != checkpointCount - 1) {
+                throw new IOException(path + " does not match the checkpoint");
+            }
+        }
+        offsets = Arrays.copyOf(checkpointOffsets, Math.max(1024, checkpointCount));
+        count = checkpointCount;
+        walkFrom(end, (offset, payload) -> changed.accept(payload.getInt(0)));
+        return count;
+    }
+
+    /**
+     * the time and difficulty of every block of the store, by block index
+     */
+    static final class Headers {
+
+        long[] times = new long[1024];
+        int[] difficulties = new int[1024];
+        int count;
+
+        private void set(int index, long time, int difficulty) {
+            if (index >= times.length) {
+                times = Arrays.copyOf(times, Math.max(index + 1, times.length * 2));
+                difficulties = Arrays.copyOf(difficulties, times.length);
+            }
+            times[index] = time;
+            difficulties[index] = difficulty;
+        }
+    }
+
+    /**
+     * Like scan, and also reads the time and difficulty of every block from
+     * the start of its latest record, without decoding the blocks. A torn
+     * tail is truncated.
+     *
+     * @return the headers of the blocks in the store
+     * @throws IOException
+     */
+    public Headers scanHeaders() throws IOException {
+        Headers headers = new Headers();
+        walk((offset, payload) -> {
+            try {
+                headers.set(payload.getInt(0), BlockCodec.time(payload), BlockCodec.difficulty(payload));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IOException(path + ": unreadable record at offset " + offset, e);
+            }
+        });
+        headers.count = count;
+        return headers;
+    }
+
+    //what walk does with the payload of each intact record
+    private interface RecordHandler {
+
+        void record(long offset, ByteBuffer payload) throws IOException;
+    }
+
+    //reads every intact record in file order, records its offset and truncates a torn tail
+    private void walk(RecordHandler handler) throws IOException {
+        count = 0;
+        walkFrom(FILE_HEADER, handler);
+    }
+
+    //reads the records from a record boundary on, on top of the offsets found so far
+    private void walkFrom(long from, RecordHandler handler) throws IOException {
+        long size = channel.size();
+        long pos = from;
+        CRC32 crc = new CRC32();
+        while (pos < size) {
+            //map a window that starts at the current record
+            long window = Math.min(MAP_WINDOW, size - pos);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos, window);
+            int consumed = 0;
+            boolean torn = false;
+            while (map.remaining() >= RECORD_HEADER) {
+                int start = map.position();
+                int length = map.getInt();
+                int checksum = map.getInt();
+                if (length <= 0 || length > MAX_RECORD) {
+                    //a crash can leave zeros where the header should be, any other bad length is damage
+                    if (!zerosFrom(pos + start)) {
+                        throw new IOException(path + ": bad record length " + length + " at offset " + (pos + start));
+                    }
+                    torn = true;
+                    break;
+                }
+                if (map.remaining() < length) {
+                    //the record goes past this window, or past the end of the file
+                    if (pos + start + RECORD_HEADER + length > size) {
+                        torn = true;
+                    }
+                    map.position(start);
+                    break;
+                }
+                ByteBuffer payload = map.slice();
+                payload.limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    if (pos + start + RECORD_HEADER + length < size) {
+                        //intact records follow, cutting the file here would lose them
+                        throw new IOException(path + ": bad checksum at offset " + (pos + start));
+                    }
+                    torn = true;
+                    break;
+                }
+                //a BlockCodec payload starts with the index of the block
+                int index = length < 4 ? -1 : payload.getInt(0);
+                if (index < 0 || index > count) {
+                    //not a torn write: the record is intact but cannot be placed
+                    throw new IOException(path + ": record for block " + index + " follows only " + count + " blocks");
+                }
+                setOffset(index, pos + start);
+                handler.record(pos + start, payload);
+                map.position(start + RECORD_HEADER + length);
+                consumed = map.position();
+            }
+            boolean lastWindow = pos + window >= size;
+            if (torn || lastWindow && consumed < window) {
+                //a half written record: cut the file at the last good record
+                truncatedBytes = size - (pos + consumed);
+                pos += consumed;
+                channel.truncate(pos);
+                channel.force(true);
+                break;
+            }
+            pos += consumed;
+        }
+        end = pos;
+    }
+
+    //true if the file holds only zeros from offset to its end, as a crash can leave an extended file
+    private boolean zerosFrom(long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        long size = channel.size();
+        while (offset < size) {
+            b.clear();
+            int n = channel.read(b, offset);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (b.get(i) != 0) {
+                    return false;
+                }
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private void setOffset(int index, long offset) {
+        if (index == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(1024, offsets.length * 2));
+        }
+        offsets[index] = offset;
+        if (index == count) {
+            count++;
+        }
+    }
+
+    private Block decode(ByteBuffer payload, long offset) throws IOException {
+        try {
+            return BlockCodec.decode(payload);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException(path + ": unreadable record at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Reads the latest record of one block. The store has to be loaded or
+     * scanned first. Several threads can read at the same time.
+     *
+     * @param index
+     * @return a new Block, not linked to any chain
+     * @throws IOException
+     */
+    public Block read(int index) throws IOException {
+        long offset;
+        synchronized (this) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("block " + index + " of " + count);
+            }
+            offset = offsets[index];
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD) {
+            throw new IOException(path + ": bad record length at offset " + offset);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, offset + RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            throw new IOException(path + ": bad checksum at offset " + offset);
+        }
+        return decode(payload, offset);
+    }
+
+    //positional reads do not move the channel position, appends are not disturbed
+    private void readFully(ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0) {
+                throw new IOException(path + ": record at offset " + offset + " is cut short");
+            }
+        }
+        b.flip();
+    }
+
+    /**
+     * the number of blocks found by the last load or scan, plus the blocks
+     * appended since
+     *
+     * @return
+     */
+    public synchronized int getBlockCount() {
+        return count;
+    }
+
+    /**
+     * Appends a block. If the block's index is already in the store, the new
+     * record replaces the old one when the store is loaded.
+     *
+     * @param block
+     * @throws IOException
+     */
+    public synchronized void append(Block block) throws IOException {
+        ByteBuffer payload = encode(block);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] record = {header, payload};
+        if (block.index < 0 || block.index > count) {
+            throw new IOException(path + ": cannot append block " + block.index + " after " + count + " blocks");
+        }
+        long offset = end;
+        channel.position(end);
+        long length = header.remaining() + payload.remaining();
+        long written = 0;
+        while (written < length) {
+            written += channel.write(record);
+        }
+        end += length;
+        setOffset(block.index, offset);
+        unsynced++;
+        if (fsync == Fsync.ALWAYS || fsync == Fsync.BATCH && unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /**
+     * forces appended records to the disk
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * the offset where the next record goes, the end of the intact records
+     *
+     * @return
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * the offsets of the latest records of the blocks, by block index
+     *
+     * @return a copy of getBlockCount() offsets
+     */
+    public synchronized long[] getOffsets() {
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Rewrites a closed store file with only the latest record of each block,
+     * in index order, dropping the records that later ones replaced. The
+     * records are copied as they are, not decoded. The new file replaces the
+     * old one in one move, so a crash leaves one or the other.
+     *
+     * @param path
+     * @return the number of bytes saved
+     * @throws IOException
+     */
+    static long compact(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        long before;
+        long after;
+        try (BlockStore old = new BlockStore(path, Fsync.NEVER, 1);
+                FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            old.scan();
+            before = old.end;
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int i = 0; i < old.count; i++) {
+                long offset = old.offsets[i];
+                length.clear();
+                old.readFully(length, offset);
+                long recordLength = RECORD_HEADER + length.getInt(0);
+                long copied = 0;
+                while (copied < recordLength) {
+                    copied += old.channel.transferTo(offset + copied, recordLength - copied, out);
+                }
+            }
+            out.force(true);
+            after = out.size();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return before - after;
+    }
+
+    /**
+     * the number of bytes of a torn last record that load() cut off
+     *
+     * @return
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    /**
+     * the store file
+     *
+     * @return
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    //a BlockCodec payload in the reused buffer
+    private ByteBuffer encode(Block block) {
+        int size = BlockCodec.encodedSize(block);
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        BlockCodec.encode(block, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+}//end class
@@ -0,0 +1,434 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.function.IntToLongFunction;
+
+/**
+ *
+ * This is the BoundedChainIndex class, a BlockIndex for a chain whose blocks
+ * live on disk and do not all fit in memory. The hash and transaction entries
+ * are held in least recently used caches of at most maxEntries entries each;
+ * a lookup that misses the cache reads the blocks through the scanner, newest
+ * first, and caches what it found, a hash or transaction the chain does not
+ * have as well. The scan runs outside the lock of the index, so blocks can
+ * be added meanwhile; its answer is only cached if the chain did not change
+ * during the scan. Only the time of every block is always in memory, as one
+ * long per block, unless the chain already holds its times in a column the
+ * index can read.
+ *
+ * A cached entry can point at a block that changed in a way the index was not
+ * told about in time (its index was set, for instance), so every hit is
+ * checked against the block before it is returned and dropped if it is stale.
+ * The cached keys of each block are remembered, so a block that changes is
+ * forgotten without going through the caches.
+ */
+final class BoundedChainIndex implements BlockIndex {
+
+    private final int maxEntries;
+    private final IntSupplier size; //the number of blocks of the chain
+    private final IntFunction<Block> loader; //reads a block of the chain by index
+    private final IntFunction<Block> scanner; //reads a block for a scan of the whole chain
+    private final IntToLongFunction timeColumn; //the time of a block kept by the chain, null if the index keeps the times
+    private final Map<String, Integer> byHash; //-1 for a hash the chain does not have
+    //transaction id to every location of the transaction, a cached list is never partial, empty for none
+    private final Map<String, List<TxLocation>> byTx;
+    //block index to the cached hashes and transaction ids that point at the block
+    private final Map<Integer, Set<String>> hashKeys = new HashMap<>();
+    private final Map<Integer, Set<String>> txKeys = new HashMap<>();
+    private long changes; //counts the changes of the chain, a scan is cached only if there was none
+    private long[] times = new long[1024]; //the time of each block, by block index, unused with a time column
+    private int timesSize;
+    private boolean timesSorted = true; //blocks are usually in time order, then a range is found by binary search
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the most hash entries and the most transaction entries
+     * kept in memory
+     * @param size the number of blocks of the chain
+     * @param loader reads a block of the chain by index
+     * @param scanner reads a block of the chain by index for a scan of every
+     * block, it should not keep the blocks it reads in memory
+     * @param timeColumn reads the time of a block without building it, null to
+     * keep a copy of every time in the index
+     */
+    BoundedChainIndex(int maxEntries, IntSupplier size, IntFunction<Block> loader, IntFunction<Block> scanner, IntToLongFunction timeColumn) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.maxEntries = maxEntries;
+        this.size = size;
+        this.loader = loader;
+        this.scanner = scanner;
+        this.timeColumn = timeColumn;
+        if (timeColumn != null) {
+            times = null;
+        }
+        byHash = lruMap((hash, i) -> unlink(hashKeys, i, hash));
+        byTx = lruMap((id, locations) -> {
+            for (TxLocation l : locations) {
+                unlink(txKeys, l.block, id);
+            }
+        });
+    }
+
+    //an access ordered map that drops its least recently used entry when full
+    private <V> Map<String, V> lruMap(BiConsumer<String, V> evicted) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > maxEntries) {
+                    evicted.accept(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static void link(Map<Integer, Set<String>> keys, int blockIndex, String key) {
+        keys.computeIfAbsent(blockIndex, k -> new HashSet<>(2)).add(key);
+    }
+
+    private static void unlink(Map<Integer, Set<String>> keys, int blockIndex, String key) {
+        Set<String> set = keys.get(blockIndex);
+        if (set != null && set.remove(key) && set.isEmpty()) {
+            keys.remove(blockIndex);
+        }
+    }
+
+    //caches where a hash is, -1 for nowhere
+    private void cacheHash(String hash, int blockIndex) {
+        Integer old = byHash.put(hash, blockIndex);
+        if (old != null && old >= 0) {
+            unlink(hashKeys, old, hash);
+        }
+        if (blockIndex >= 0) {
+            link(hashKeys, blockIndex, hash);
+        }
+    }
+
+    private void dropHash(String hash) {
+        Integer old = byHash.remove(hash);
+        if (old != null && old >= 0) {
+            unlink(hashKeys, old, hash);
+        }
+    }
+
+    //caches every location of a transaction, none for a transaction the chain does not have
+    private void cacheTx(String id, List<TxLocation> locations) {
+        dropTx(id);
+        byTx.put(id, locations);
+        for (TxLocation l : locations) {
+            link(txKeys, l.block, id);
+        }
+    }
+
+    private void dropTx(String id) {
+        List<TxLocation> old = byTx.remove(id);
+        if (old != null) {
+            for (TxLocation l : old) {
+                unlink(txKeys, l.block, id);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void add(Block block) {
+        changes++;
+        index(block);
+    }
+
+    @Override
+    public synchronized void remove(Block block) {
+        changes++;
+        forget(block.index);
+        if (block.index == timesSize - 1) {
+            timesSize--;
+        }
+    }
+
+    @Override
+    public synchronized void update(Block block) {
+        changes++;
+        forget(block.index);
+        index(block);
+    }
+
+    private void index(Block block) {
+        if (block.hash != null) {
+            //replaces a cached miss too
+            cacheHash(block.hash, block.index);
+        }
+        //a cached list holds every location, so it gets the block's locations too
+        List<String> txs = block.getTransactions();
+        for (int i = 0; i < txs.size(); i++) {
+            String id = BlockIndex.txId(txs.get(i));
+            List<TxLocation> locations = byTx.get(id);
+            if (locations != null) {
+                insert(locations, new TxLocation(block.index, i));
+                link(txKeys, block.index, id);
+            }
+        }
+        setTime(block.index, block.time);
+    }
+
+    //drops the cached entries that point at a block
+    private void forget(int blockIndex) {
+        Set<String> hashes = hashKeys.remove(blockIndex);
+        if (hashes != null) {
+            for (String hash : hashes) {
+                byHash.remove(hash);
+            }
+        }
+        Set<String> ids = txKeys.remove(blockIndex);
+        if (ids != null) {
+            for (String id : ids) {
+                List<TxLocation> locations = byTx.get(id);
+                if (locations != null) {
+                    //the block holds it no more, or index puts it back
+                    locations.removeIf(l -> l.block == blockIndex);
+                }
+            }
+        }
+    }
+
+    private void setTime(int blockIndex, long time) {
+        if (timeColumn != null) {
+            //the column already holds the time, only the order is checked
+            timesSize = Math.max(timesSize, blockIndex + 1);
+            if (blockIndex > 0 && time(blockIndex - 1) > time || blockIndex + 1 < timesSize && time > time(blockIndex + 1)) {
+                timesSorted = false;
+            }
+            return;
+        }
+        if (blockIndex >= times.length) {
+            times = Arrays.copyOf(times, Math.max(blockIndex + 1, times.length * 2));
+        }
+        times[blockIndex] = time;
+        timesSize = Math.max(timesSize, blockIndex + 1);
+        if (blockIndex > 0 && times[blockIndex - 1] > time || blockIndex + 1 < timesSize && time > times[blockIndex + 1]) {
+            timesSorted = false;
+        }
+    }
+
+    private long time(int blockIndex) {
+        return timeColumn != null ? timeColumn.applyAsLong(blockIndex) : times[blockIndex];
+    }
+
+    private static void insert(List<TxLocation> list, TxLocation location) {
+        int at = list.size();
+        while (at > 0 && list.get(at - 1).compareTo(location) > 0) {
+            at--;
+        }
+        if (at == 0 || !list.get(at - 1).equals(location)) {
+            list.add(at, location);
+        }
+    }
+
+    /**
+     * takes the times of the first n blocks from a checkpoint or from the
+     * record headers of the store instead of reading the blocks
+     *
+     * @param checkpointTimes
+     * @param n
+     */
+    public synchronized void restoreTimes(long[] checkpointTimes, int n) {
+        changes++;
+        times = Arrays.copyOf(checkpointTimes, Math.max(1024, n));
+        timesSize = n;
+        timesSorted = true;
+        for (int i = 1; i < n && timesSorted; i++) {
+            timesSorted = times[i - 1] <= times[i];
+        }
+    }
+
+    /**
+     * the times of the first n blocks, for a checkpoint
+     *
+     * @param n
+     * @return
+     */
+    public synchronized long[] copyTimes(int n) {
+        if (timeColumn != null) {
+            long[] copy = new long[n];
+            for (int i = 0; i < n; i++) {
+                copy[i] = timeColumn.applyAsLong(i);
+            }
+            return copy;
+        }
+        return Arrays.copyOf(times, n);
+    }
+
+    @Override
+    public synchronized void clear() {
+        changes++;
+        byHash.clear();
+        byTx.clear();
+        hashKeys.clear();
+        txKeys.clear();
+        times = timeColumn != null ? null : new long[1024];
+        timesSize = 0;
+        timesSorted = true;
+    }
+
+    @Override
+    public int findBlockByHash(String hash) {
+        while (true) {
+            long seen;
+            int chainSize;
+            synchronized (this) {
+                Integer cached = byHash.get(hash);
+                if (cached != null) {
+                    if (cached < 0) {
+                        hits++;
+                        return -1;
+                    }
+                    if (cached < size.getAsInt() && hash.equals(loader.apply(cached).hash)) {
+                        hits++;
+                        return cached;
+                    }
+                    dropHash(hash);
+                }
+                misses++;
+                seen = changes;
+                chainSize = size.getAsInt();
+            }
+            int found = -1;
+            try {
+                for (int i = chainSize - 1; i >= 0 && found < 0; i--) {
+                    if (hash.equals(scanner.apply(i).hash)) {
+                        found = i;
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //the chain got shorter during the scan
+                continue;
+            }
+            synchronized (this) {
+                if (changes == seen) {
+                    cacheHash(hash, found);
+                }
+            }
+            return found;
+        }
+    }
+
+    @Override
+    public List<TxLocation> findTransaction(String tx) {
+        String id = BlockIndex.txId(tx);
+        while (true) {
+            long seen;
+            int chainSize;
+            synchronized (this) {
+                List<TxLocation> cached = byTx.get(id);
+                if (cached != null) {
+                    if (stillHolds(cached, tx)) {
+                        hits++;
+                        return new ArrayList<>(cached);
+                    }
+                    dropTx(id);
+                }
+                misses++;
+                seen = changes;
+                chainSize = size.getAsInt();
+            }
+            //a transaction can be in several blocks, so every block is read
+            List<TxLocation> locations = new ArrayList<>(1);
+            try {
+                for (int i = chainSize - 1; i >= 0; i--) {
+                    List<String> txs = scanner.apply(i).getTransactions();
+                    for (int p = txs.size() - 1; p >= 0; p--) {
+                        if (tx.equals(txs.get(p))) {
+                            locations.add(0, new TxLocation(i, p));
+                        }
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                continue;
+            }
+            synchronized (this) {
+                if (changes == seen) {
+                    cacheTx(id, locations);
+                }
+            }
+            return new ArrayList<>(locations);
+        }
+    }
+
+    //whether every cached location still holds the transaction, an empty list always does
+    private boolean stillHolds(List<TxLocation> locations, String tx) {
+        int chainSize = size.getAsInt();
+        for (TxLocation l : locations) {
+            if (l.block >= chainSize) {
+                return false;
+            }
+            List<String> txs = loader.apply(l.block).getTransactions();
+            if (l.position >= txs.size() || !tx.equals(txs.get(l.position))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized List<Integer> findBlocksByTime(long fromMillis, long toMillis) {
+        List<Integer> blocks = new ArrayList<>();
+        if (fromMillis > toMillis) {
+            return blocks;
+        }
+        int end = Math.min(timesSize, size.getAsInt());
+        int i = 0;
+        if (timesSorted) {
+            //first block with time >= fromMillis
+            int lo = 0;
+            int hi = end;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (time(mid) < fromMillis) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (i = lo; i < end && time(i) <= toMillis; i++) {
+                blocks.add(i);
+            }
+            return blocks;
+        }
+        for (; i < end; i++) {
+            long time = time(i);
+            if (time >= fromMillis && time <= toMillis) {
+                blocks.add(i);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * the lookups answered from the caches
+     *
+     * @return
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * the lookups that had to read the blocks
+     *
+     * @return
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}//end class
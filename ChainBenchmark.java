@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *
+ * This is the ChainBenchmark class, a small benchmark harness for the
+ * blockchain. It measures hashing, mining, validation, repair and printing of
+ * the chain and writes the results as JSON so that runs can be compared over
+ * time.
+ *
+ * Every benchmark runs some warmup iterations that are thrown away and then a
+ * number of measured iterations of a fixed length. The score is the mean over
+ * the measured iterations, the error is the half width of a 99.9% interval
+ * (normal approximation) like JMH reports it.
+ *
+ * run: java ChainBenchmark [-o results.json] [-sizes 1000,100000,1000000]
+ * [-wi 3] [-i 5] [-t 1000] [-filter name]
+ */
+final class ChainBenchmark {
+
+    private static final Timestamp TIME = new Timestamp(1552608000000L); //fixed so runs hash the same input
+    static volatile Object sink; //keeps results alive so the JIT cannot drop the work
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int[] sizes = {1000, 100000, 1000000};
+    private String filter = "";
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * one unit of work that is timed
+     */
+    interface Op {
+
+        Object run(long invocation);
+    }
+
+    /**
+     * the measured result of one benchmark
+     */
+    static final class Result {
+
+        String name;
+        String params;
+        String mode; //"thrpt" is operations per second, "avgt" is time per operation
+        String unit;
+        double[] scores;
+
+        double mean() {
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            return sum / scores.length;
+        }
+
+        double error() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = mean();
+            double var = 0;
+            for (double s : scores) {
+                var += (s - mean) * (s - mean);
+            }
+            //3.29 is the z value of a two sided 99.9% interval
+            return 3.29 * Math.sqrt(var / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+
+    /**
+     * Runs op for the warmup and measured iterations and records its
+     * throughput in operations per second.
+     *
+     * @param name
+     * @param params
+     * @param op
+     */
+    void throughput(String name, String params, Op op) {
+        if (!selected(name)) {
+            return;
+        }
+        double[] scores = new double[iterations];
+        for (int it = -warmupIterations; it < iterations; it++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long deadline = start + iterationMillis * 1_000_000L;
+            long now;
+            do {
+                sink = op.run(ops++);
+                now = System.nanoTime();
+            } while (now < deadline);
+            if (it >= 0) {
+                scores[it] = ops * 1e9 / (now - start);
+            }
+        }
+        record(name, params, "thrpt", "ops/s", scores);
+    }
+
+    /**
+     * Runs op for the warmup and measured iterations and records the average
+     * time of one operation in milliseconds. Every operation runs to the end,
+     * so an iteration can take longer than the iteration time.
+     *
+     * @param name
+     * @param params
+     * @param op
+     */
+    void averageTime(String name, String params, Op op) {
+        if (!selected(name)) {
+            return;
+        }
+        double[] scores = new double[iterations];
+        long invocation = 0;
+        for (int it = -warmupIterations; it < iterations; it++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long deadline = start + iterationMillis * 1_000_000L;
+            long now;
+            do {
+                sink = op.run(invocation++);
+                ops++;
+                now = System.nanoTime();
+            } while (now < deadline);
+            if (it >= 0) {
+                scores[it] = (now - start) / 1e6 / ops;
+            }
+        }
+        record(name, params, "avgt", "ms/op", scores);
+    }
+
+    //whether a benchmark matches the -filter option
+    private boolean selected(String name) {
+        return name.contains(filter);
+    }
+
+    private void record(String name, String params, String mode, String unit, double[] scores) {
+        Result r = new Result();
+        r.name = name;
+        r.params = params;
+        r.mode = mode;
+        r.unit = unit;
+        r.scores = scores;
+        results.add(r);
+        System.out.format(Locale.ROOT, "%-28s %-22s %14.3f +- %.3f %s%n", name, params, r.mean(), r.error(), unit);
+    }
+
+    /**
+     * Builds a chain of the given size through BlockChain.addBlock, every block
+     * mined at difficulty 1 and linked to its parent.
+     *
+     * @param size
+     * @return
+     */
+    static BlockChain buildChain(int size) {
+        BlockChain bc = new BlockChain();
+        for (int i = 0; i < size; i++) {
+            Block b = new Block(i, TIME, "tx " + i, 1);
+            if (i > 0) {
+                b.setPreviousHash(bc.getLatestBlock().hash);
+            }
+            b.proofOfWork(1);
+            bc.addBlock(b);
+        }
+        return bc;
+    }
+
+    /**
+     * runs all benchmarks
+     */
+    void runAll() {
+        final String header = "{\"index\":1,\"tx\":\"pay alice 10\"}";
+        throughput("applySha256", "", n -> Block.applySha256(header));
+        //each SHA-256 implementation on its own, whichever one the chain was given
+        final byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        for (HashFunction f : new HashFunction[]{Hashing.JDK, Hashing.JAVA}) {
+            final MessageDigest md = f.newDigest();
+            throughput("digest", "impl=" + f.getName(), n -> md.digest(headerBytes));
+        }
+
+        final Block block = new Block(1, TIME, "pay alice 10", 3);
+        block.setPreviousHash(Block.applySha256("parent"));
+        throughput("calculateHash", "", n -> {
+            block.setNonce(n);
+            return block.calculateHash();
+        });
+
+        for (int d = 1; d <= 5; d++) {
+            final int difficulty = d;
+            //a different block every invocation, the nonce search length depends on the data
+            averageTime("proofOfWork", "difficulty=" + d, n -> {
+                Block b = new Block(1, TIME, "pay alice " + n, difficulty);
+                b.setPreviousHash(block.previousHash);
+                return b.proofOfWork(difficulty);
+            });
+        }
+
+        for (int size : sizes) {
+            //building a large chain takes a while, skip it when no chain benchmark is selected
+            if (!selected("isChainValid") && !selected("repairChain") && !selected("toString")) {
+                continue;
+            }
+            final BlockChain bc = buildChain(size);
+            final String params = "blocks=" + size;
+            averageTime("isChainValid", params, n -> {
+                //verify the whole chain, not just what changed since the last run
+                bc.resetVerified();
+                return bc.isChainValid();
+            });
+            final Block middle = bc.get(size / 2);
+            final String original = middle.getData();
+            averageTime("repairChain", params, n -> {
+                //corrupt one block like menu option 4, then repair it
+                middle.setData(original + n);
+                bc.repairChain();
+                return middle.hash;
+            });
+            middle.setData(original);
+            bc.repairChain();
+            averageTime("toString", params, n -> bc.toString().length());
+        }
+    }
+
+    /**
+     * Writes the results as a JSON array, one object per benchmark with its
+     * mode, unit, score, score error and the raw score of every iteration.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeJson(Writer out) throws IOException {
+        out.write("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            StringBuilder raw = new StringBuilder();
+            for (int j = 0; j < r.scores.length; j++) {
+                raw.append(j == 0 ? "" : ",").append(number(r.scores[j]));
+            }
+            out.write(String.format(Locale.ROOT,
+                    "  {\"benchmark\":\"%s\",\"params\":\"%s\",\"mode\":\"%s\",\"unit\":\"%s\",\"warmupIterations\":%d,\"iterations\":%d,\"iterationMillis\":%d,"
+                    + "\"score\":%s,\"scoreError\":%s,\"rawData\":[%s]}%s%n",
+                    r.name, r.params, r.mode, r.unit, warmupIterations, iterations, iterationMillis,
+                    number(r.mean()), number(r.error()), raw, i + 1 < results.size() ? "," : ""));
+        }
+        out.write("]\n");
+    }
+
+    //JSON has no NaN
+    private static String number(double d) {
+        return Double.isNaN(d) ? "null" : String.format(Locale.ROOT, "%.6f", d);
+    }
+
+    public static void main(String[] args) throws IOException {
+        ChainBenchmark bench = new ChainBenchmark();
+        String outFile = "chain-benchmark.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-o":
+                    outFile = args[i + 1];
+                    break;
+                case "-wi":
+                    bench.warmupIterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-i":
+                    bench.iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-t":
+                    bench.iterationMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "-filter":
+                    bench.filter = args[i + 1];
+                    break;
+                case "-sizes":
+                    String[] parts = args[i + 1].split(",");
+                    bench.sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        bench.sizes[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        bench.runAll();
+        try (Writer out = Files.newBufferedWriter(Path.of(outFile), StandardCharsets.UTF_8)) {
+            bench.writeJson(out);
+        }
+        System.out.println("Results written to " + outFile);
+    }
+
+}//end class
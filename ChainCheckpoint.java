@@ -0,0 +1,297 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *
+ * This is the ChainCheckpoint class, a snapshot of a verified chain kept next
+ * to its BlockStore. It records how far the chain was verified (the index and
+ * hash of the last trusted block), its cumulative work, and the state of the
+ * store then: the end of the file and the offset and time of every block. A
+ * chain that loads a checkpoint trusts the blocks up to that index and only
+ * verifies the blocks after it, and a chain kept on disk only reads the
+ * records appended after the checkpoint, so a restart costs the blocks since
+ * the checkpoint instead of the whole chain.
+ *
+ * The file ends with a SHA-256 digest of everything before it, or an
+ * HMAC-SHA256 with the key of -Dblockchain.checkpoint.key when one is set, so
+ * a checkpoint that was cut short, damaged or (with a key) forged is refused
+ * and the chain is verified in full instead. So is a checkpoint written in
+ * another hash mode (see Hashing), its blocks do not hash the same.
+ *
+ * Blocks that were stored again after the checkpoint (corrupted or repaired)
+ * are found by their offsets, and the trust ends before the first of them.
+ */
+final class ChainCheckpoint {
+
+    private static final int MAGIC = 0x434b5054; //"CKPT"
+    private static final int VERSION = 3; //2 records the hash mode, 3 holds the work as an exact integer
+    private static final int SIGNATURE = 32; //bytes of a SHA-256 digest or an HMAC-SHA256
+
+    final int trusted; //index of the last verified block, -1 for none
+    final String trustedHash; //its hash
+    final BigInteger totalWork; //the work of the first count blocks
+    final long storeEnd; //the end of the store file
+    final int count; //the number of blocks in the store
+    final long[] offsets; //the offset of the latest record of each block
+    final long[] times; //the time of each block
+
+    /**
+     * @param trusted index of the last verified block
+     * @param trustedHash its hash
+     * @param totalWork the work of the first count blocks
+     * @param storeEnd the end of the store file
+     * @param count the number of blocks in the store
+     * @param offsets the offset of each block's latest record
+     * @param times the time of each block
+     */
+    ChainCheckpoint(int trusted, String trustedHash, BigInteger totalWork, long storeEnd, int count, long[] offsets, long[] times) {
+        if (trusted >= count || offsets.length < count || times.length < count) {
+            throw new IllegalArgumentException("checkpoint of " + count + " blocks trusting block " + trusted);
+        }
+        this.trusted = trusted;
+        this.trustedHash = trustedHash;
+        this.totalWork = totalWork;
+        this.storeEnd = storeEnd;
+        this.count = count;
+        this.offsets = offsets;
+        this.times = times;
+    }
+
+    //SHA-256, or HMAC-SHA256 when a key is configured
+    private static final class Signer {
+
+        private final MessageDigest md;
+        private final Mac mac;
+
+        Signer() throws IOException {
+            String key = System.getProperty("blockchain.checkpoint.key");
+            try {
+                if (key != null && !key.isEmpty()) {
+                    mac = Mac.getInstance("HmacSHA256");
+                    mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                    md = null;
+                } else {
+                    md = MessageDigest.getInstance("SHA-256");
+                    mac = null;
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void update(byte[] b, int off, int len) {
+            if (mac != null) {
+                mac.update(b, off, len);
+            } else {
+                md.update(b, off, len);
+            }
+        }
+
+        byte[] sign() {
+            return mac != null ? mac.doFinal() : md.digest();
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a file. It is written next to the file and
+     * moved over it, so a crash leaves the old checkpoint or the new one.
+     *
+     * @param path
+     * @throws IOException
+     */
+    void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Signer signer = new Signer();
+        try (OutputStream file = Files.newOutputStream(tmp)) {
+            OutputStream signed = new FilterOutputStream(file) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    signer.update(b, off, len);
+                    out.write(b, off, len);
+                }
+            };
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(signed, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Hashing.getMode());
+            out.writeInt(trusted);
+            out.writeUTF(trustedHash == null ? "" : trustedHash);
+            byte[] work = totalWork.toByteArray();
+            out.writeShort(work.length);
+            out.write(work);
+            out.writeLong(storeEnd);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(times[i]);
+            }
+            out.flush();
+            //the signature itself is not signed
+            file.write(signer.sign());
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint file.
+     *
+     * @param path
+     * @return null if there is no such file
+     * @throws IOException if the file is damaged or its signature does not
+     * match
+     */
+    static ChainCheckpoint read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        Signer signer = new Signer();
+        //everything but the signature at the end is signed
+        long signedLength = Files.size(path) - SIGNATURE;
+        try (InputStream file = Files.newInputStream(path)) {
+            InputStream signed = new FilterInputStream(file) {
+                private long position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0 && position < signedLength) {
+                        signer.update(b, off, (int) Math.min(n, signedLength - position));
+                    }
+                    position += Math.max(0, n);
+                    return n;
+                }
+            };
+            DataInputStream in = new DataInputStream(new BufferedInputStream(signed, 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a checkpoint");
+            }
+            String hashMode = in.readUTF();
+            if (!hashMode.equals(Hashing.getMode())) {
+                //the trusted blocks were verified with another hash function
+                throw new IOException(path + " was written for " + hashMode + " hashes");
+            }
+            int trusted = in.readInt();
+            String trustedHash = in.readUTF();
+            byte[] work = new byte[in.readUnsignedShort()];
+            in.readFully(work);
+            BigInteger totalWork = work.length == 0 ? BigInteger.ZERO : new BigInteger(work);
+            long storeEnd = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || trusted >= count || 16L * count > signedLength) {
+                throw new IOException(path + " is damaged");
+            }
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+            }
+            long[] times = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+            }
+            byte[] signature = new byte[SIGNATURE];
+            in.readFully(signature);
+            if (in.read() >= 0 || !MessageDigest.isEqual(signer.sign(), signature)) {
+                throw new IOException(path + " does not match its signature");
+            }
+            return new ChainCheckpoint(trusted, trustedHash, totalWork, storeEnd, count, offsets, times);
+        } catch (EOFException e) {
+            throw new IOException(path + " is cut short", e);
+        }
+    }
+
+    /**
+     * The first block stored again after this checkpoint was written, found
+     * by comparing the offsets of the store now with the offsets then.
+     *
+     * @param offsetsNow the offsets of the store's blocks now
+     * @return count if none of the checkpointed blocks was stored again
+     */
+    int firstChanged(long[] offsetsNow) {
+        int n = Math.min(count, offsetsNow.length);
+        for (int i = 0; i < n; i++) {
+            if (offsetsNow[i] != offsets[i]) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Compacts a store (see BlockStore.compact) and writes its checkpoint
+     * again with the new offsets, so the trust of the checkpoint survives the
+     * compaction. Blocks stored again after the checkpoint end the trust, like
+     * they do when the chain is loaded.
+     *
+     * @param store the store file, not open
+     * @param checkpoint its checkpoint file, may not exist
+     * @return the number of bytes saved
+     * @throws IOException
+     */
+    static long compact(Path store, Path checkpoint) throws IOException {
+        ChainCheckpoint cp = null;
+        try {
+            cp = checkpoint == null ? null : read(checkpoint);
+        } catch (IOException e) {
+            //a bad checkpoint is of no use, the store is still compacted
+        }
+        int trustedBefore = -1;
+        if (cp != null) {
+            try (BlockStore old = new BlockStore(store, BlockStore.Fsync.NEVER, 1)) {
+                old.scan();
+                trustedBefore = Math.min(cp.trusted, cp.firstChanged(old.getOffsets()) - 1);
+            }
+        }
+        long saved = BlockStore.compact(store);
+        if (cp == null) {
+            return saved;
+        }
+        try (BlockStore compacted = new BlockStore(store, BlockStore.Fsync.NEVER, 1)) {
+            int count = compacted.scan();
+            long[] times = Arrays.copyOf(cp.times, count);
+            BigInteger work = cp.totalWork;
+            //the blocks after the trusted ones may have been stored again, their times are read back
+            for (int i = trustedBefore + 1; i < count; i++) {
+                Block b = compacted.read(i);
+                times[i] = b.time;
+                if (i >= cp.count) {
+                    work = work.add(Difficulty.exactWork(b.difficulty));
+                }
+            }
+            String hash = trustedBefore < 0 ? "" : compacted.read(trustedBefore).hash;
+            new ChainCheckpoint(trustedBefore, hash, work, compacted.getEnd(), count, compacted.getOffsets(), times).write(checkpoint);
+        }
+        return saved;
+    }
+
+}//end class
@@ -0,0 +1,172 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * This is the ChainExporter class that writes a range of blocks of a chain to
+ * an OutputStream or a channel as it reads them. Only one block and the
+ * stream buffers are held in memory at a time, however long the chain is.
+ *
+ * The blocks are read from one snapshot of the chain, so an export taken
+ * while blocks are added is the chain as it was when the export started.
+ *
+ * The blocks can be written as JSON, the same document BlockChain.toString
+ * gives for the selected range, or as BINARY: for every block its length (4
+ * bytes) and its BlockCodec encoding. Either can be gzip compressed.
+ */
+final class ChainExporter {
+
+    private static final int BUFFER = 64 * 1024;
+
+    /**
+     * the format of the exported blocks
+     */
+    enum Format {
+        JSON, BINARY
+    }
+
+    private final BlockChain chain;
+    private int from = 0;
+    private int to = Integer.MAX_VALUE; //exclusive, capped at the chain size
+    private boolean gzip;
+    private Format format = Format.JSON;
+
+    /**
+     * chain - the chain to export, by default all of it as JSON
+     *
+     * @param chain
+     */
+    ChainExporter(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * from - the first block to export, to - the block after the last one to
+     * export. A range past the end of the chain stops at the end.
+     *
+     * @param from
+     * @param to
+     */
+    public void setRange(int from, int to) {
+        if (from < 0 || to < from) {
+            throw new IllegalArgumentException("bad range " + from + " to " + to);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * gzip - compress the export
+     *
+     * @param gzip
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * format - JSON or BINARY
+     *
+     * @param format
+     */
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Writes the selected blocks to out. The stream is flushed but not closed,
+     * a gzip export is finished so out holds a complete gzip stream.
+     *
+     * @param out
+     * @return the number of blocks written
+     * @throws IOException
+     */
+    public int export(OutputStream out) throws IOException {
+        //the caller owns out, closing the wrappers must not close it
+        OutputStream target = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        if (gzip) {
+            target = new GZIPOutputStream(target, BUFFER);
+        }
+        //one snapshot for the whole export, blocks added or a branch switched meanwhile are not mixed in
+        List<Block> blocks = chain.snapshot();
+        int written;
+        if (format == Format.JSON) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), BUFFER)) {
+                written = exportJson(blocks, writer);
+            }
+        } else {
+            try (OutputStream buffered = new BufferedOutputStream(target, BUFFER)) {
+                written = exportBinary(blocks, buffered);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the selected blocks to a channel, see export(OutputStream).
+     *
+     * @param channel
+     * @return the number of blocks written
+     * @throws IOException
+     */
+    public int export(WritableByteChannel channel) throws IOException {
+        return export(Channels.newOutputStream(channel));
+    }
+
+    private int exportJson(List<Block> blocks, Writer writer) throws IOException {
+        JsonChainWriter json = new JsonChainWriter(writer);
+        json.beginChain();
+        int written = 0;
+        int end = Math.min(to, blocks.size());
+        Block last = null;
+        for (int i = from; i < end; i++) {
+            last = blocks.get(i);
+            json.writeBlock(last);
+            written++;
+        }
+        //the most recent block of the range exported
+        json.endChain(last == null ? null : last.hash);
+        return written;
+    }
+
+    private int exportBinary(List<Block> blocks, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int written = 0;
+        int end = Math.min(to, blocks.size());
+        for (int i = from; i < end; i++) {
+            Block b = blocks.get(i);
+            int size = BlockCodec.encodedSize(b);
+            if (buffer.capacity() < size + 4) {
+                buffer = ByteBuffer.allocate(size + 4);
+            }
+            buffer.clear();
+            buffer.putInt(size);
+            BlockCodec.encode(b, buffer);
+            out.write(buffer.array(), 0, buffer.position());
+            written++;
+        }
+        return written;
+    }
+
+}//end class
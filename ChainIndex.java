@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ *
+ * This is the ChainIndex class, a BlockIndex that keeps every entry in memory
+ * for a chain that lives in memory. For each block it also remembers the keys
+ * it was indexed under, so a block that changes can be taken out under its
+ * old hash, transactions, time and even index before it is put back under the
+ * new ones.
+ */
+final class ChainIndex implements BlockIndex {
+
+    private final Map<String, Integer> byHash = new HashMap<>();
+    private final Map<String, List<TxLocation>> byTx = new HashMap<>(); //transaction id to locations
+    private final NavigableMap<Long, List<Integer>> byTime = new TreeMap<>();
+    private final Map<Block, Keys> indexed = new IdentityHashMap<>(); //the keys of each block
+
+    //what one block was indexed under
+    private static final class Keys {
+
+        int index;
+        String hash;
+        long time;
+        String[] txIds;
+    }
+
+    @Override
+    public synchronized void add(Block block) {
+        Keys old = indexed.remove(block);
+        if (old != null) {
+            remove(old);
+        }
+        Keys keys = new Keys();
+        keys.index = block.index;
+        keys.hash = block.hash;
+        keys.time = block.time;
+        List<String> txs = block.getTransactions();
+        keys.txIds = new String[txs.size()];
+        for (int i = 0; i < keys.txIds.length; i++) {
+            keys.txIds[i] = BlockIndex.txId(txs.get(i));
+            insert(byTx.computeIfAbsent(keys.txIds[i], k -> new ArrayList<>(1)), new TxLocation(block.index, i));
+        }
+        if (keys.hash != null) {
+            byHash.put(keys.hash, block.index);
+        }
+        insert(byTime.computeIfAbsent(keys.time, k -> new ArrayList<>(1)), block.index);
+        indexed.put(block, keys);
+    }
+
+    @Override
+    public synchronized void remove(Block block) {
+        Keys old = indexed.remove(block);
+        if (old != null) {
+            remove(old);
+        }
+    }
+
+    @Override
+    public synchronized void update(Block block) {
+        add(block);
+    }
+
+    //takes a block out under the keys it was indexed with
+    private void remove(Keys keys) {
+        int blockIndex = keys.index;
+        if (keys.hash != null && Integer.valueOf(blockIndex).equals(byHash.get(keys.hash))) {
+            byHash.remove(keys.hash);
+        }
+        for (int i = 0; i < keys.txIds.length; i++) {
+            List<TxLocation> locations = byTx.get(keys.txIds[i]);
+            if (locations != null) {
+                locations.remove(new TxLocation(blockIndex, i));
+                if (locations.isEmpty()) {
+                    byTx.remove(keys.txIds[i]);
+                }
+            }
+        }
+        List<Integer> blocks = byTime.get(keys.time);
+        if (blocks != null) {
+            blocks.remove(Integer.valueOf(blockIndex));
+            if (blocks.isEmpty()) {
+                byTime.remove(keys.time);
+            }
+        }
+    }
+
+    //keeps the lists in chain order, blocks are usually appended at the end
+    private static <T extends Comparable<? super T>> void insert(List<T> list, T value) {
+        int at = list.size();
+        while (at > 0 && list.get(at - 1).compareTo(value) > 0) {
+            at--;
+        }
+        list.add(at, value);
+    }
+
+    @Override
+    public synchronized void clear() {
+        byHash.clear();
+        byTx.clear();
+        byTime.clear();
+        indexed.clear();
+    }
+
+    @Override
+    public synchronized int findBlockByHash(String hash) {
+        Integer i = byHash.get(hash);
+        return i == null ? -1 : i;
+    }
+
+    @Override
+    public synchronized List<TxLocation> findTransaction(String tx) {
+        List<TxLocation> locations = byTx.get(BlockIndex.txId(tx));
+        return locations == null ? Collections.<TxLocation>emptyList() : new ArrayList<>(locations);
+    }
+
+    @Override
+    public synchronized List<Integer> findBlocksByTime(long fromMillis, long toMillis) {
+        List<Integer> blocks = new ArrayList<>();
+        if (fromMillis > toMillis) {
+            return blocks;
+        }
+        for (List<Integer> sameTime : byTime.subMap(fromMillis, true, toMillis, true).values()) {
+            blocks.addAll(sameTime);
+        }
+        Collections.sort(blocks);
+        return blocks;
+    }
+
+}//end class
@@ -0,0 +1,241 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * This is the ChainMetrics class that counts what the blockchain does: hash
+ * attempts, mined blocks with their mining time and nonce, and the duration of
+ * every verification and repair of the chain, and the hits and misses of the
+ * block cache of a chain kept on disk. There is one instance per
+ * process, it can be read as a text snapshot (menu option 0) or through JMX.
+ */
+public final class ChainMetrics implements ChainMetricsMBean {
+
+    private static final ChainMetrics INSTANCE = new ChainMetrics();
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final LongAdder hashAttempts = new LongAdder();
+    private final LongAdder miningNanos = new LongAdder(); //time spent mining, summed over blocks
+    private final Histogram mining = new Histogram(); //nanoseconds per mined block
+    private final Histogram nonces = new Histogram(); //nonce of every mined block
+    private final Histogram validation = new Histogram(); //nanoseconds per isChainValid
+    private final Histogram repair = new Histogram(); //nanoseconds per repairChain
+    private final LongAdder cacheHits = new LongAdder(); //blocks found in the BlockCache
+    private final LongAdder cacheMisses = new LongAdder(); //blocks read back from the store
+    private boolean registered;
+
+    private ChainMetrics() {
+    }
+
+    /**
+     * the metrics of this process
+     *
+     * @return
+     */
+    public static ChainMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, once.
+     */
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("BlockChain:type=ChainMetrics"));
+            registered = true;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * records a mined block
+     *
+     * @param attempts the number of nonces hashed
+     * @param nanos the time it took to mine the block
+     * @param nonce the nonce found, -1 if it does not fit in a long
+     */
+    public void recordMining(long attempts, long nanos, long nonce) {
+        hashAttempts.add(attempts);
+        miningNanos.add(nanos);
+        mining.record(nanos);
+        if (nonce >= 0) {
+            nonces.record(nonce);
+        }
+    }
+
+    /**
+     * records hashes that did not lead to a mined block
+     *
+     * @param attempts
+     */
+    public void recordHashes(long attempts) {
+        hashAttempts.add(attempts);
+    }
+
+    /**
+     * records the duration of a chain verification
+     *
+     * @param nanos
+     */
+    public void recordValidation(long nanos) {
+        validation.record(nanos);
+    }
+
+    /**
+     * records the duration of a chain repair
+     *
+     * @param nanos
+     */
+    public void recordRepair(long nanos) {
+        repair.record(nanos);
+    }
+
+    /**
+     * records a block found in the block cache
+     */
+    public void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * records a block the block cache had to read from the store
+     */
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    @Override
+    public long getHashAttempts() {
+        return hashAttempts.sum();
+    }
+
+    @Override
+    public long getBlocksMined() {
+        return mining.getCount();
+    }
+
+    /**
+     * Hash attempts per second of mining wall time. With a parallel miner this
+     * is the rate of all workers together.
+     *
+     * @return
+     */
+    @Override
+    public long getMiningHashesPerSecond() {
+        long nanos = miningNanos.sum();
+        return nanos == 0 ? 0 : (long) (hashAttempts.sum() * 1e9 / nanos);
+    }
+
+    @Override
+    public double getMiningMillisMean() {
+        return mining.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMiningMillisP99() {
+        return mining.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getNonceMean() {
+        return nonces.getMean();
+    }
+
+    @Override
+    public long getValidations() {
+        return validation.getCount();
+    }
+
+    @Override
+    public double getValidationMillisMean() {
+        return validation.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getValidationMillisP99() {
+        return validation.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRepairs() {
+        return repair.getCount();
+    }
+
+    @Override
+    public double getRepairMillisMean() {
+        return repair.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getRepairMillisP99() {
+        return repair.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * all metrics as text, one per line
+     *
+     * @return
+     */
+    @Override
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Hash attempts: %d%n", getHashAttempts()));
+        sb.append(String.format(Locale.ROOT, "Mining hashes per second: %d%n", getMiningHashesPerSecond()));
+        sb.append(String.format(Locale.ROOT, "Blocks mined: %d (mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms)%n",
+                getBlocksMined(), getMiningMillisMean(), mining.getPercentile(50) / NANOS_PER_MILLI,
+                getMiningMillisP99(), mining.getMax() / NANOS_PER_MILLI));
+        sb.append(String.format(Locale.ROOT, "Nonce: mean %.1f, p50 %d, max %d%n",
+                getNonceMean(), nonces.getPercentile(50), nonces.getMax()));
+        sb.append(String.format(Locale.ROOT, "Verifications: %d (mean %.3f ms, p99 %.3f ms)%n",
+                getValidations(), getValidationMillisMean(), getValidationMillisP99()));
+        sb.append(String.format(Locale.ROOT, "Repairs: %d (mean %.3f ms, p99 %.3f ms)%n",
+                getRepairs(), getRepairMillisMean(), getRepairMillisP99()));
+        if (getCacheHits() + getCacheMisses() > 0) {
+            sb.append(String.format(Locale.ROOT, "Block cache: %d hits, %d misses (hit ratio %.3f)%n",
+                    getCacheHits(), getCacheMisses(), getCacheHitRatio()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * forgets all recorded values
+     */
+    @Override
+    public void reset() {
+        hashAttempts.reset();
+        miningNanos.reset();
+        mining.reset();
+        nonces.reset();
+        validation.reset();
+        repair.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+
+}//end class
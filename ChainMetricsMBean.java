@@ -0,0 +1,43 @@
+/**
+ *
+ * This is the management interface of ChainMetrics. It is what JMX clients
+ * such as jconsole see under "BlockChain:type=ChainMetrics". Durations are in
+ * milliseconds.
+ */
+public interface ChainMetricsMBean {
+
+    long getHashAttempts();
+
+    long getBlocksMined();
+
+    long getMiningHashesPerSecond();
+
+    double getMiningMillisMean();
+
+    double getMiningMillisP99();
+
+    double getNonceMean();
+
+    long getValidations();
+
+    double getValidationMillisMean();
+
+    double getValidationMillisP99();
+
+    long getRepairs();
+
+    double getRepairMillisMean();
+
+    double getRepairMillisP99();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    String snapshot();
+
+    void reset();
+
+}//end interface
@@ -0,0 +1,275 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This is the ChainNetwork class, a simulator of many ChainNodes replicating
+ * one chain on this machine. Nodes are linked in a ring plus random extra
+ * links, and every message is delivered over an in-memory link after a
+ * latency with some jitter, so blocks mined at the same time on different
+ * nodes fork the chain the way they would on a real network.
+ *
+ * A run mines for a while on the first few nodes (the others only validate
+ * and relay, so the hash power of the network does not grow with the number
+ * of nodes), stops the miners, waits until no message is in flight and then
+ * checks that every node ended on the same valid chain. It reports the throughput of the network (blocks on the
+ * common chain per second, stale blocks, messages and bytes) and the
+ * propagation latency of the blocks: the time from a block being mined to
+ * each node hearing of it, and to the last node hearing of it.
+ *
+ * run: java ChainNetwork [-nodes 3,10,25,50] [-seconds 10] [-difficulty 4]
+ * [-miners 3] [-latency 5] [-jitter 5] [-peers 4] [-seed 1]
+ */
+final class ChainNetwork {
+
+    private static final long QUIET_TIMEOUT_MILLIS = 60_000; //the longest wait for the network to settle
+
+    private final List<ChainNode> nodes = new ArrayList<>();
+    private final ScheduledExecutorService links;
+    private final Random random;
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final AtomicLong inFlight = new AtomicLong(); //messages sent and not handled yet
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong minedBlocks = new AtomicLong();
+    //when each block was mined and how many nodes know it
+    private final Map<String, Spread> spreads = new ConcurrentHashMap<>();
+    private final Histogram nodeLatency = new Histogram(); //mined to heard of, per node, nanoseconds
+    private final Histogram fullLatency = new Histogram(); //mined to heard of by every node, nanoseconds
+
+    //how far one block got
+    private static final class Spread {
+
+        final long minedAt = System.nanoTime();
+        final AtomicInteger nodes = new AtomicInteger(1); //the miner knows it
+    }
+
+    /**
+     * @param size the number of nodes
+     * @param peers the number of links of each node, at least the 2 of the
+     * ring
+     * @param latencyMillis the time a message takes over a link
+     * @param jitterMillis the most extra time, random per message
+     * @param seed the seed of the links and the jitter
+     */
+    ChainNetwork(int size, int peers, double latencyMillis, double jitterMillis, long seed) {
+        random = new Random(seed);
+        latencyMicros = (long) (latencyMillis * 1000);
+        jitterMicros = (long) (jitterMillis * 1000);
+        links = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "network");
+            t.setDaemon(true);
+            return t;
+        });
+        Block genesis = new Block(0, new Timestamp(1552608000000L), "Genesis", 2);
+        genesis.proofOfWork(2);
+        byte[] encoded = BlockCodec.encode(genesis);
+        for (int i = 0; i < size; i++) {
+            nodes.add(new ChainNode(i, this, encoded));
+        }
+        //a ring keeps every node reachable, random links shorten the paths
+        for (int i = 0; i < size; i++) {
+            ChainNode.connect(nodes.get(i), nodes.get((i + 1) % size));
+        }
+        for (ChainNode node : nodes) {
+            int tries = 0;
+            while (node.getPeerCount() < Math.min(peers, size - 1) && tries++ < 10 * size) {
+                ChainNode.connect(node, nodes.get(random.nextInt(size)));
+            }
+        }
+    }
+
+    /**
+     * sends a message over the link between two nodes
+     *
+     * @param from
+     * @param to
+     * @param m
+     */
+    void send(ChainNode from, ChainNode to, ChainNode.Message m) {
+        messages.incrementAndGet();
+        bytes.addAndGet(m.size());
+        inFlight.incrementAndGet();
+        long delay;
+        synchronized (random) {
+            delay = latencyMicros + (jitterMicros > 0 ? (long) (random.nextDouble() * jitterMicros) : 0);
+        }
+        if (delay <= 0) {
+            links.execute(() -> to.deliver(m));
+        } else {
+            links.schedule(() -> to.deliver(m), delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * a node is done with a message sent over the network
+     */
+    void handled() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * a node mined a block
+     *
+     * @param b
+     */
+    void mined(Block b) {
+        minedBlocks.incrementAndGet();
+        spreads.put(b.hash, new Spread());
+    }
+
+    /**
+     * a node heard of a valid block for the first time
+     *
+     * @param b
+     */
+    void seen(Block b) {
+        Spread s = spreads.get(b.hash);
+        if (s == null) {
+            return;
+        }
+        long latency = System.nanoTime() - s.minedAt;
+        nodeLatency.record(latency);
+        if (s.nodes.incrementAndGet() == nodes.size()) {
+            fullLatency.record(latency);
+        }
+    }
+
+    /**
+     * Mines on the first nodes for the given time, then lets the network
+     * settle and prints what happened.
+     *
+     * @param difficulty
+     * @param miners the number of nodes that mine
+     * @param millis
+     * @return whether every node ended on the same valid chain
+     * @throws InterruptedException
+     */
+    public boolean run(int difficulty, int miners, long millis) throws InterruptedException {
+        long start = System.nanoTime();
+        for (ChainNode node : nodes) {
+            node.start(node.getId() < miners ? difficulty : 0);
+        }
+        Thread.sleep(millis);
+        for (ChainNode node : nodes) {
+            node.stopMining();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long quietStart = System.nanoTime();
+        while (inFlight.get() > 0 && failed() == null && System.nanoTime() - quietStart < QUIET_TIMEOUT_MILLIS * 1_000_000) {
+            Thread.sleep(10);
+        }
+        long settleMillis = (System.nanoTime() - quietStart) / 1_000_000;
+        for (ChainNode node : nodes) {
+            node.stop();
+        }
+        links.shutdownNow();
+        ChainNode failed = failed();
+        if (failed != null) {
+            throw new RuntimeException("node " + failed.getId() + " failed: " + failed.getFailure(), failed.getFailure());
+        }
+
+        Set<String> tips = new HashSet<>();
+        boolean valid = true;
+        long reorgs = 0;
+        long syncs = 0;
+        long duplicates = 0;
+        for (ChainNode node : nodes) {
+            tips.add(node.getChain().getChainHash());
+            valid &= node.getChain().isChainValid();
+            reorgs += node.getReorgs();
+            syncs += node.getSyncRequests();
+            duplicates += node.getDuplicates();
+        }
+        int length = nodes.get(0).getChain().getChainSize() - 1; //without the genesis block
+        long mined = minedBlocks.get();
+        System.out.format(Locale.ROOT, "%d nodes: %d blocks mined, %d on the chain (%.1f%% stale), %.1f blocks per second %n",
+                nodes.size(), mined, length, mined == 0 ? 0 : 100.0 * (mined - length) / mined, length / seconds);
+        System.out.format(Locale.ROOT, "  %d messages (%.0f per second), %.2f MB sent, %d duplicate blocks, %d reorganizations, %d range requests %n",
+                messages.get(), messages.get() / seconds, bytes.get() / 1e6, duplicates, reorgs, syncs);
+        System.out.format(Locale.ROOT, "  propagation to a node:    p50 %.2f ms, p99 %.2f ms, max %.2f ms %n",
+                nodeLatency.getPercentile(50) / 1e6, nodeLatency.getPercentile(99) / 1e6, nodeLatency.getMax() / 1e6);
+        System.out.format(Locale.ROOT, "  propagation to all nodes: p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d blocks) %n",
+                fullLatency.getPercentile(50) / 1e6, fullLatency.getPercentile(99) / 1e6, fullLatency.getMax() / 1e6, fullLatency.getCount());
+        boolean converged = tips.size() == 1 && valid;
+        System.out.format("  settled in %d ms, %s %n", settleMillis,
+                converged ? "every node has the same valid chain" : tips.size() + " different tips, valid " + valid);
+        return converged;
+    }
+
+    //a node whose thread stopped on an exception, null if none did
+    private ChainNode failed() {
+        for (ChainNode node : nodes) {
+            if (node.getFailure() != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = {3, 10, 25, 50};
+        long seconds = 10;
+        int difficulty = 4;
+        int miners = 3;
+        double latency = 5;
+        double jitter = 5;
+        int peers = 4;
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-nodes":
+                    String[] parts = args[i + 1].split(",");
+                    sizes = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        sizes[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                case "-seconds":
+                    seconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "-difficulty":
+                    difficulty = Integer.decode(args[i + 1]);
+                    break;
+                case "-miners":
+                    miners = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-latency":
+                    latency = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-jitter":
+                    jitter = Double.parseDouble(args[i + 1]);
+                    break;
+                case "-peers":
+                    peers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        boolean ok = true;
+        for (int size : sizes) {
+            ok &= new ChainNetwork(size, peers, latency, jitter, seed).run(difficulty, miners, seconds * 1000);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+}//end class
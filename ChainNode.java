@@ -0,0 +1,486 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *
+ * This is the ChainNode class, one node of a ChainNetwork. A node has its own
+ * BlockChain and talks to its peers only through messages: a block it mined
+ * or heard of is gossiped to every peer (BlockCodec bytes, as a wire would
+ * carry them), and a node that hears of a block whose parent it does not know
+ * asks the sender for the blocks it misses, a batch at a time.
+ *
+ * Every incoming block is validated on its own (hash, Merkle root, proof of
+ * work) and then by where it links: a block on the tip is appended, a block
+ * that links elsewhere is kept as a side branch. When a side branch has more
+ * cumulative work than the blocks it would replace (a tie goes to the lower
+ * tip hash, so every node makes the same choice) the node reorganizes onto
+ * it. The blocks it leaves are kept as a side branch in turn.
+ *
+ * All changes of the chain happen on the node's own thread; the optional
+ * miner thread hands the blocks it finds to that thread.
+ */
+final class ChainNode {
+
+    static final int SYNC_BATCH = 64; //the most blocks sent in one range reply
+    private static final int SIDE_LIMIT = 4096; //the most blocks kept off the active chain
+    private static final int SIDE_DEPTH = 256; //side blocks this far below the tip are dropped first
+
+    /**
+     * what nodes send each other
+     */
+    static final class Message {
+
+        enum Kind {
+            BLOCK, GET_RANGE, RANGE, MINED
+        }
+
+        final Kind kind;
+        final ChainNode from;
+        final int first; //GET_RANGE: the first block asked for, RANGE: the first block sent
+        final byte[][] blocks; //BLOCK and RANGE
+        final Block mined; //MINED: a block of this node's miner
+        final CountDownLatch done; //MINED: counted down once the block is handled
+
+        private Message(Kind kind, ChainNode from, int first, byte[][] blocks, Block mined) {
+            this.kind = kind;
+            this.from = from;
+            this.first = first;
+            this.blocks = blocks;
+            this.mined = mined;
+            this.done = mined != null ? new CountDownLatch(1) : null;
+        }
+
+        /**
+         * the number of bytes the message would take on a wire
+         *
+         * @return
+         */
+        int size() {
+            int size = 9; //kind and first
+            if (blocks != null) {
+                for (byte[] b : blocks) {
+                    size += 4 + b.length;
+                }
+            }
+            return size;
+        }
+    }
+
+    private final int id;
+    private final ChainNetwork network;
+    //a node switches branches with reorganize, which only a BlockList supports
+    private final BlockChain chain = new BlockChain(new BlockList());
+    private final List<ChainNode> peers = new ArrayList<>();
+    private final LinkedBlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    //valid blocks that are not on the active chain, by hash and by parent hash; used by the node thread only
+    private final Map<String, Block> side = new HashMap<>();
+    private final Map<String, List<Block>> children = new HashMap<>();
+    private final Set<ChainNode> syncing = new HashSet<>(); //peers asked for a range that has not come back
+    private volatile boolean running;
+    private volatile RuntimeException failure; //what stopped the node thread, null while it works
+    private Thread worker;
+    private Thread miner;
+    private int minedBlocks;
+    private long received;
+    private long duplicates;
+    private long rejected;
+    private long reorgs;
+    private long syncRequests;
+
+    /**
+     * @param id the number of the node
+     * @param network the network the node sends through
+     * @param genesis the encoded genesis block every node of the network
+     * starts from
+     */
+    ChainNode(int id, ChainNetwork network, byte[] genesis) {
+        this.id = id;
+        this.network = network;
+        chain.addBlock(decode(genesis));
+    }
+
+    /**
+     * connects two nodes both ways
+     *
+     * @param a
+     * @param b
+     */
+    static void connect(ChainNode a, ChainNode b) {
+        if (a != b && !a.peers.contains(b)) {
+            a.peers.add(b);
+            b.peers.add(a);
+        }
+    }
+
+    /**
+     * starts handling messages, and mining at the given difficulty if it is
+     * above 0
+     *
+     * @param difficulty
+     */
+    public void start(int difficulty) {
+        running = true;
+        worker = new Thread(this::handleMessages, "node-" + id);
+        worker.setDaemon(true);
+        worker.start();
+        if (difficulty > 0) {
+            miner = new Thread(() -> mine(difficulty), "node-" + id + "-miner");
+            miner.setDaemon(true);
+            miner.start();
+        }
+    }
+
+    /**
+     * stops mining, messages are still handled
+     *
+     * @throws InterruptedException
+     */
+    public void stopMining() throws InterruptedException {
+        Thread m = miner;
+        miner = null;
+        if (m != null) {
+            m.interrupt();
+            m.join();
+        }
+    }
+
+    /**
+     * stops the node
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        stopMining();
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join();
+        }
+    }
+
+    /**
+     * puts a message in the inbox, called by the network when the message
+     * arrives
+     *
+     * @param m
+     */
+    void deliver(Message m) {
+        inbox.add(m);
+    }
+
+    private void handleMessages() {
+        while (running) {
+            Message m;
+            try {
+                m = inbox.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                handle(m);
+            } catch (IllegalArgumentException e) {
+                //a block that does not decode, one bad message must not stop the node
+                rejected++;
+            } catch (RuntimeException e) {
+                //anything else is a fault of the node, it stops and the network reports it
+                failure = e;
+                running = false;
+            } finally {
+                if (m.done != null) {
+                    m.done.countDown();
+                } else {
+                    network.handled();
+                }
+            }
+        }
+    }
+
+    private void handle(Message m) {
+        switch (m.kind) {
+            case MINED:
+                accept(m.mined, null, true);
+                break;
+            case BLOCK:
+                received++;
+                accept(decode(m.blocks[0]), m.from, true);
+                break;
+            case GET_RANGE:
+                sendRange(m.from, m.first);
+                break;
+            case RANGE:
+                received += m.blocks.length;
+                syncing.remove(m.from);
+                synced(m);
+                break;
+            default:
+                throw new IllegalStateException(String.valueOf(m.kind));
+        }
+    }
+
+    //the blocks of the active chain from first on, at most a batch of them
+    private void sendRange(ChainNode to, int first) {
+        List<Block> blocks = chain.snapshot();
+        int end = Math.min(blocks.size(), first + SYNC_BATCH);
+        byte[][] encoded = new byte[Math.max(0, end - first)][];
+        for (int i = first; i < end; i++) {
+            encoded[i - first] = BlockCodec.encode(blocks.get(i));
+        }
+        network.send(this, to, new Message(Message.Kind.RANGE, this, first, encoded, null));
+    }
+
+    //handles the blocks of a range reply and asks for more if the gap is not closed yet
+    private void synced(Message m) {
+        Block last = null;
+        for (byte[] encoded : m.blocks) {
+            last = decode(encoded);
+            //synced blocks are old news to the other peers, they are not gossiped again
+            accept(last, m.from, false);
+        }
+        if (m.blocks.length == 0) {
+            return;
+        }
+        Block first = decode(m.blocks[0]);
+        if (!linked(first)) {
+            //the fork is older than the range asked for, ask for the blocks before it
+            requestRange(m.from, Math.max(1, m.first - 2 * Math.max(m.blocks.length, SYNC_BATCH)));
+        } else if (m.blocks.length == SYNC_BATCH) {
+            requestRange(m.from, last.index + 1);
+        }
+    }
+
+    //whether a block's parent is on the active chain or in a side branch
+    private boolean linked(Block b) {
+        return side.containsKey(b.previousHash) || onActiveChain(b.index - 1, b.previousHash);
+    }
+
+    private boolean onActiveChain(int index, String hash) {
+        List<Block> blocks = chain.snapshot();
+        return index >= 0 && index < blocks.size() && blocks.get(index).hash.equals(hash);
+    }
+
+    private void requestRange(ChainNode peer, int first) {
+        if (peer == null || !syncing.add(peer)) {
+            return;
+        }
+        syncRequests++;
+        network.send(this, peer, new Message(Message.Kind.GET_RANGE, this, first, null, null));
+    }
+
+    /**
+     * Takes in a block: validates it, links it to the active chain or a side
+     * branch, switches to a heavier branch and gossips the block on.
+     *
+     * @param b
+     * @param source the peer the block came from, null for a block of this
+     * node
+     * @param gossip whether the block is passed on to the peers
+     */
+    private void accept(Block b, ChainNode source, boolean gossip) {
+        if (side.containsKey(b.hash) || chain.findBlockByHash(b.hash) >= 0) {
+            duplicates++;
+            return;
+        }
+        if (b.index < 1 || !Difficulty.isValid(b.difficulty) || ChainValidator.problem(b, null) != null) {
+            rejected++;
+            return;
+        }
+        if (source != null) {
+            network.seen(b);
+        }
+        if (gossip) {
+            byte[][] encoded = {BlockCodec.encode(b)};
+            for (ChainNode peer : peers) {
+                if (peer != source) {
+                    network.send(this, peer, new Message(Message.Kind.BLOCK, this, b.index, encoded, null));
+                }
+            }
+        }
+        addSide(b);
+        //the oldest side block this block descends from
+        Block root = b;
+        while (side.containsKey(root.previousHash)) {
+            root = side.get(root.previousHash);
+        }
+        if (!onActiveChain(root.index - 1, root.previousHash)) {
+            //an orphan: the blocks between the chain and this one are missing, ask the sender for them
+            List<Block> blocks = chain.snapshot();
+            requestRange(source, Math.max(1, Math.min(blocks.size(), root.index) - SYNC_BATCH / 4));
+            return;
+        }
+        switchIfHeavier(root);
+    }
+
+    //moves to the heaviest branch growing from root if it outweighs the active blocks it replaces
+    private void switchIfHeavier(Block root) {
+        List<Block> branch = heaviest(root);
+        List<Block> blocks = chain.snapshot();
+        int from = root.index;
+        Block tip = blocks.get(blocks.size() - 1);
+        Block branchTip = branch.get(branch.size() - 1);
+        int heavier = work(branch, 0, branch.size()).compareTo(work(blocks, from, blocks.size()));
+        if (heavier < 0 || heavier == 0 && (from == blocks.size() || branchTip.hash.compareTo(tip.hash) >= 0)) {
+            return;
+        }
+        for (Block b : branch) {
+            removeSide(b);
+        }
+        if (from == blocks.size() && branch.size() == 1) {
+            //the common case, the block extends the tip
+            chain.tryAddBlock(branch.get(0));
+            return;
+        }
+        List<Block> replaced = new ArrayList<>(blocks.subList(from, blocks.size()));
+        chain.reorganize(from, branch);
+        if (!replaced.isEmpty()) {
+            reorgs++;
+        }
+        for (Block b : replaced) {
+            addSide(b);
+        }
+    }
+
+    //the path of side blocks from root with the most work, ties to the lower tip hash
+    private List<Block> heaviest(Block root) {
+        List<Block> best = null;
+        BigInteger bestWork = null;
+        for (Block child : children.getOrDefault(root.hash, Collections.emptyList())) {
+            if (child.index != root.index + 1) {
+                continue;
+            }
+            List<Block> path = heaviest(child);
+            BigInteger w = work(path, 0, path.size());
+            int heavier = best == null ? 1 : w.compareTo(bestWork);
+            if (heavier > 0 || heavier == 0 && path.get(path.size() - 1).hash.compareTo(best.get(best.size() - 1).hash) < 0) {
+                best = path;
+                bestWork = w;
+            }
+        }
+        List<Block> path = new ArrayList<>();
+        path.add(root);
+        if (best != null) {
+            path.addAll(best);
+        }
+        return path;
+    }
+
+    //exact, so branches of equal work tie and the tip hash decides
+    private static BigInteger work(List<Block> blocks, int from, int to) {
+        BigInteger work = BigInteger.ZERO;
+        for (int i = from; i < to; i++) {
+            work = work.add(Difficulty.exactWork(blocks.get(i).difficulty));
+        }
+        return work;
+    }
+
+    private void addSide(Block b) {
+        if (side.putIfAbsent(b.hash, b) == null) {
+            children.computeIfAbsent(b.previousHash, k -> new ArrayList<>(1)).add(b);
+        }
+        if (side.size() > SIDE_LIMIT) {
+            //drop the side blocks far below the tip, no branch that old will win
+            int floor = chain.getChainSize() - SIDE_DEPTH;
+            for (Block old : new ArrayList<>(side.values())) {
+                if (old.index < floor) {
+                    removeSide(old);
+                }
+            }
+        }
+    }
+
+    private void removeSide(Block b) {
+        if (side.remove(b.hash) != null) {
+            List<Block> siblings = children.get(b.previousHash);
+            siblings.remove(b);
+            if (siblings.isEmpty()) {
+                children.remove(b.previousHash);
+            }
+        }
+    }
+
+    //mines on the tip until stopped; a block found is handed to the node thread like a received one
+    private void mine(int difficulty) {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            Block tip = chain.getLatestBlock();
+            String tipHash = tip.hash;
+            Block b = new Block(tip.index + 1, chain.getTime(), "node " + id + " block " + minedBlocks, difficulty);
+            b.setPreviousHash(tipHash);
+            MiningHasher hasher = new MiningHasher(b);
+            //a block that arrives meanwhile makes this one stale, the search gives up at once
+            long nonce = hasher.search(0, 1, difficulty,
+                    () -> tipHash.equals(chain.getChainHash()) && !Thread.currentThread().isInterrupted() ? Long.MAX_VALUE : 0);
+            if (nonce < 0) {
+                continue;
+            }
+            b.setProof(nonce, hasher.toHex());
+            minedBlocks++;
+            network.mined(b);
+            Message m = new Message(Message.Kind.MINED, this, b.index, null, b);
+            inbox.add(m);
+            try {
+                //the next block is mined on the tip this one made
+                m.done.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static Block decode(byte[] encoded) {
+        return BlockCodec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public BlockChain getChain() {
+        return chain;
+    }
+
+    /**
+     * the exception that stopped the node thread
+     *
+     * @return null if the node has not failed
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    public int getMinedBlocks() {
+        return minedBlocks;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getReorgs() {
+        return reorgs;
+    }
+
+    public long getSyncRequests() {
+        return syncRequests;
+    }
+
+}//end class
@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ *
+ * This is the ChainRepairer class that makes a broken chain valid again. It
+ * finds the first invalid block, fixes its Merkle root, links it to its parent
+ * and mines it again at its own difficulty. Mining a block changes its hash,
+ * so every block after it is linked to the new hash and mined again too,
+ * until a block is reached that is valid and still linked to its parent; the
+ * chain after that block is checked for the next invalid block.
+ *
+ * Each block is mined on all the threads of a ParallelMiner. Every repaired
+ * block is saved to the block store, and about once a second the repairer
+ * writes a checkpoint file holding how far it got. A repair that is
+ * interrupted (the thread is interrupted or the process dies) starts again
+ * after the last checkpointed block instead of checking the whole chain.
+ */
+final class ChainRepairer {
+
+    private static final long REPORT_NANOS = 1_000_000_000L; //progress is reported at most once a second
+    private static final long CHECKPOINT_NANOS = 1_000_000_000L; //and checkpointed at most once a second
+
+    private final BlockChain chain;
+    private final ParallelMiner miner; //null mines on the calling thread
+    private Path checkpoint;
+    private PrintStream progress;
+    private int repaired;
+    private boolean complete;
+
+    /**
+     * @param chain the chain to repair
+     * @param miner the miner of the blocks, null to mine on the calling thread
+     */
+    ChainRepairer(BlockChain chain, ParallelMiner miner) {
+        this.chain = chain;
+        this.miner = miner;
+    }
+
+    /**
+     * checkpoint - the file that records the progress of the repair, null for
+     * none
+     *
+     * @param checkpoint
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * progress - where the progress of the repair is printed, null for
+     * nowhere
+     *
+     * @param progress
+     */
+    public void setProgress(PrintStream progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Repairs the chain. When the calling thread is interrupted the repair
+     * stops after the block being mined, with a checkpoint written, and
+     * isComplete() is false.
+     *
+     * @return the number of blocks mined again
+     * @throws IOException if the checkpoint cannot be read or written
+     */
+    public int repair() throws IOException {
+        List<Block> blocks = chain.snapshot();
+        repaired = 0;
+        complete = false;
+        long start = System.nanoTime();
+        long reported = start;
+        long checkpointed = start;
+        int bad = firstInvalid(blocks, resumePoint(blocks));
+        while (bad >= 0) {
+            int first = bad;
+            int i = first;
+            for (; i < blocks.size(); i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return interrupted(blocks, first, i);
+                }
+                Block b = blocks.get(i);
+                Block parent = blocks.get(i - 1);
+                boolean linked = parent.hash.equals(b.previousHash);
+                if (i > first && linked && ChainValidator.problem(b, parent) == null) {
+                    //the repair did not change this block's parent, the rest of the chain is as it was
+                    break;
+                }
+                if (b.isBatched() && !b.merkleRoot.equals(MerkleTree.root(b.transactions))) {
+                    b.setTransactions(b.transactions);
+                }
+                if (!linked) {
+                    b.setPreviousHash(parent.hash);
+                }
+                try {
+                    if (miner != null) {
+                        miner.mine(b, b.difficulty);
+                    } else {
+                        b.proofOfWork(b.difficulty);
+                    }
+                } catch (RuntimeException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        //the miner was interrupted, the block keeps its old hash and is mined on resume
+                        return interrupted(blocks, first, i);
+                    }
+                    throw e;
+                }
+                //an interrupt during a write closes the store's channel, it is kept back until the block is saved
+                boolean interrupted = Thread.interrupted();
+                try {
+                    chain.saveBlock(b);
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                repaired++;
+                long now = System.nanoTime();
+                if (now - checkpointed >= CHECKPOINT_NANOS) {
+                    checkpointed = now;
+                    writeCheckpoint(first, i + 1, b.hash);
+                }
+                if (progress != null && now - reported >= REPORT_NANOS) {
+                    reported = now;
+                    progress.format("Repaired %d blocks, up to block %d of %d, %.1f blocks per second %n",
+                            repaired, i, blocks.size() - 1, repaired * 1e9 / (now - start));
+                }
+            }
+            bad = i < blocks.size() ? firstInvalid(blocks, i) : -1;
+        }
+        complete = true;
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+        if (progress != null) {
+            progress.format("Repaired %d blocks in %d milliseconds %n", repaired, (System.nanoTime() - start) / 1_000_000);
+        }
+        return repaired;
+    }
+
+    //checkpoints the blocks repaired before block i and stops
+    private int interrupted(List<Block> blocks, int first, int i) throws IOException {
+        //a FileChannel used by an interrupted thread closes itself, so the interrupt waits until the checkpoint is written
+        Thread.interrupted();
+        try {
+            if (i > first) {
+                writeCheckpoint(first, i, blocks.get(i - 1).hash);
+            }
+        } finally {
+            Thread.currentThread().interrupt();
+        }
+        if (progress != null) {
+            progress.format("Repair interrupted before block %d, %d blocks repaired %n", i, repaired);
+        }
+        return repaired;
+    }
+
+    /**
+     * whether the last repair reached the end of the chain
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * the number of blocks mined again by the last repair
+     *
+     * @return
+     */
+    public int getRepaired() {
+        return repaired;
+    }
+
+    private static int firstInvalid(List<Block> blocks, int from) {
+        return firstInvalid(blocks, from, blocks.size());
+    }
+
+    private static int firstInvalid(List<Block> blocks, int from, int to) {
+        if (BlockChain.validator != null) {
+            return BlockChain.validator.firstInvalidParallel(blocks, from, to);
+        }
+        return ChainValidator.firstInvalid(blocks, from, to);
+    }
+
+    //the block after the checkpoint, if the blocks before it are still valid
+    private int resumePoint(List<Block> blocks) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return 1;
+        }
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(checkpoint)) {
+            p.load(in);
+        }
+        try {
+            int next = Integer.parseInt(p.getProperty("next"));
+            if (next >= 1 && next <= blocks.size() && blocks.get(next - 1).hash.equals(p.getProperty("hash"))) {
+                //a block before the checkpoint may have changed since it was written, so they are checked again
+                int bad = firstInvalid(blocks, 1, next);
+                if (bad >= 0) {
+                    if (progress != null) {
+                        progress.format("Block %d changed since the repair checkpoint, repairing from it %n", bad);
+                    }
+                    return bad;
+                }
+                if (progress != null) {
+                    progress.format("Resuming the repair started at block %s after block %d %n", p.getProperty("first"), next - 1);
+                }
+                return next;
+            }
+        } catch (NumberFormatException e) {
+            //an unreadable checkpoint is ignored, the whole chain is checked
+        }
+        return 1;
+    }
+
+    //the blocks up to next - 1 are repaired, the last of them has this hash
+    private void writeCheckpoint(int first, int next, String hash) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        if (chain.getStore() != null) {
+            //the checkpoint must not get ahead of the repaired blocks on disk
+            chain.getStore().sync();
+        }
+        Properties p = new Properties();
+        p.setProperty("first", String.valueOf(first));
+        p.setProperty("next", String.valueOf(next));
+        p.setProperty("hash", hash);
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            p.store(out, "repairChain checkpoint");
+        }
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}//end class
@@ -0,0 +1,619 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This is the ChainServer class, an HTTP interface to a BlockChain built on
+ * the JDK's own HTTP server. Every answer is JSON except the binary export.
+ *
+ * GET /status - size, chain hash, difficulty and nonce of the latest block,
+ * pending mining jobs
+ * POST /transactions?difficulty=n - the body is the transaction. The answer
+ * (202) holds the id of the mining job, the request does not wait for the
+ * proof of work. n is a number of zeroes or a compact target (0x1f00ffff);
+ * without it the block gets the chain's next difficulty when it is mined
+ * GET /jobs/{id} - state of a mining job: queued, mining, done (with the
+ * block index and hash) or failed
+ * GET /verify - whether the chain is valid, and the first invalid block
+ * GET /blocks/{i} or /blocks/latest - one block
+ * GET /export?from=&to=&format=json|binary&gzip=true - a range of blocks,
+ * streamed by ChainExporter
+ *
+ * Each job is mined into its own block. When the chain has a mempool, the
+ * jobs queued at the same difficulty are mined together into one batched
+ * block of at most the mempool's batch size, so a burst of transactions
+ * costs one proof of work per batch.
+ *
+ * Requests run on virtual threads when the JVM has them (Java 21 and later)
+ * and on a fixed pool of blockchain.http.threads threads otherwise. At most
+ * blockchain.http.maxRequests requests are in flight; any request beyond that
+ * is answered 503 at once instead of waiting. Blocks are mined one at a time
+ * by a single mining thread, on a ParallelMiner when more than one mining
+ * thread is configured; at most blockchain.http.maxJobs jobs wait for it.
+ */
+final class ChainServer {
+
+    private static final int MAX_BODY = 1 << 20; //largest transaction accepted
+    private static final int KEPT_JOBS = 10_000; //finished jobs that can still be looked up
+
+    /**
+     * the states of a mining job
+     */
+    enum State {
+        QUEUED, MINING, DONE, FAILED
+    }
+
+    //one transaction waiting for, or done with, its block
+    static final class Job {
+
+        final long id;
+        final String tx;
+        final int difficulty;
+        volatile State state = State.QUEUED;
+        volatile int block = -1;
+        volatile String hash;
+        volatile String error;
+
+        Job(long id, String tx, int difficulty) {
+            this.id = id;
+            this.tx = tx;
+            this.difficulty = difficulty;
+        }
+    }
+
+    private final BlockChain chain;
+    private final HttpServer server;
+    private final ExecutorService workers; //handles the requests
+    private final ExecutorService rejects; //answers 503 to requests over the limit
+    private final boolean virtualThreads;
+    private final int maxRequests;
+    private final int maxJobs;
+    private final ParallelMiner miner; //null mines on the mining thread
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong nextJob = new AtomicLong(1);
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final ArrayDeque<Long> finished = new ArrayDeque<>(); //oldest finished job first, guarded by itself
+    private final ArrayDeque<Job> queue = new ArrayDeque<>(); //jobs waiting for the mining thread, guarded by itself
+    private final Thread mining;
+    private volatile boolean running = true;
+    //set while a request over the limit runs, its handler only answers 503
+    private static final ThreadLocal<Boolean> OVERLOADED = new ThreadLocal<>();
+
+    /**
+     * Creates a server for the chain, configured by the system properties
+     * blockchain.http.host (default the loopback address, so only this
+     * machine can reach it), blockchain.http.threads (default 64, without
+     * virtual threads), blockchain.http.maxRequests (default 10000) and
+     * blockchain.http.maxJobs (default 10000). It does not listen until start
+     * is called.
+     *
+     * @param chain
+     * @param port 0 for any free port
+     * @throws IOException
+     */
+    ChainServer(BlockChain chain, int port) throws IOException {
+        this.chain = chain;
+        this.maxRequests = Integer.getInteger("blockchain.http.maxRequests", 10_000);
+        this.maxJobs = Integer.getInteger("blockchain.http.maxJobs", 10_000);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        if (virtual != null) {
+            workers = virtual;
+            rejects = virtual;
+        } else {
+            workers = Executors.newFixedThreadPool(Integer.getInteger("blockchain.http.threads", 64), r -> daemon(r, "http"));
+            rejects = Executors.newFixedThreadPool(2, r -> daemon(r, "http-reject"));
+        }
+        this.miner = BlockChain.miningThreads > 1 ? new ParallelMiner(BlockChain.miningThreads) : null;
+        //other machines reach the server only when a host is set, 0.0.0.0 for every interface
+        String host = System.getProperty("blockchain.http.host");
+        InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(host, port);
+        this.server = HttpServer.create(address, 1024);
+        server.setExecutor(this::execute);
+        server.createContext("/status", handler(this::status));
+        server.createContext("/transactions", handler(this::addTransaction));
+        server.createContext("/jobs/", handler(this::job));
+        server.createContext("/verify", handler(this::verify));
+        server.createContext("/blocks/", handler(this::block));
+        server.createContext("/export", handler(this::export));
+        this.mining = new Thread(this::mineJobs, "http-miner");
+        mining.setDaemon(true);
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor where it exists, found at run time so the class still runs on older JVMs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    //hands an exchange to a worker, or to a rejecting thread when too many are in flight
+    private void execute(Runnable exchange) {
+        if (inFlight.incrementAndGet() > maxRequests) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            rejects.execute(() -> {
+                OVERLOADED.set(Boolean.TRUE);
+                try {
+                    exchange.run();
+                } finally {
+                    OVERLOADED.remove();
+                }
+            });
+            return;
+        }
+        workers.execute(() -> {
+            try {
+                exchange.run();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * starts listening and mining
+     */
+    public void start() {
+        server.start();
+        mining.start();
+    }
+
+    /**
+     * Stops listening, waits up to delaySeconds for the requests being
+     * handled, and stops mining. Queued jobs are failed.
+     *
+     * @param delaySeconds
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        running = false;
+        mining.interrupt();
+        synchronized (queue) {
+            for (Job job : queue) {
+                fail(job, "server stopped");
+            }
+            queue.clear();
+        }
+        workers.shutdown();
+        rejects.shutdown();
+        if (miner != null) {
+            miner.shutdown();
+        }
+    }
+
+    /**
+     * the port the server listens on
+     *
+     * @return
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * the address the server listens on, as text
+     *
+     * @return
+     */
+    public String getHost() {
+        return server.getAddress().getHostString();
+    }
+
+    /**
+     * whether requests run on virtual threads
+     *
+     * @return
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * the number of requests answered 503 because too many were in flight
+     *
+     * @return
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    //a request handler that answers a JSON body, or an error
+    private interface Route {
+
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    //thrown by a route to answer an error status with a message
+    private static final class HttpError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private HttpHandler handler(Route route) {
+        return exchange -> {
+            try {
+                if (OVERLOADED.get() != null) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    throw new HttpError(503, "too many requests in flight");
+                }
+                route.handle(exchange);
+            } catch (HttpError e) {
+                send(exchange, e.status, "{\"error\":" + quote(e.getMessage()) + "}");
+            } catch (RuntimeException e) {
+                send(exchange, 500, "{\"error\":" + quote(String.valueOf(e)) + "}");
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "GET");
+        List<Block> blocks = chain.snapshot();
+        Block latest = blocks.get(blocks.size() - 1);
+        int pending;
+        synchronized (queue) {
+            pending = queue.size();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":").append(blocks.size());
+        sb.append(",\"chainHash\":").append(quote(latest.hash));
+        sb.append(",\"difficulty\":").append(latest.difficulty);
+        sb.append(",\"nonce\":").append(latest.nonceString());
+        sb.append(",\"pendingJobs\":").append(pending);
+        sb.append(",\"miningHashesPerSecond\":").append(ChainMetrics.get().getMiningHashesPerSecond());
+        sb.append(",\"virtualThreads\":").append(virtualThreads);
+        sb.append('}');
+        send(exchange, 200, sb.toString());
+    }
+
+    private void addTransaction(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        Map<String, String> query = query(exchange);
+        //0 leaves the difficulty to the chain when the block is mined, so a retargeting chain can adjust it
+        int difficulty = 0;
+        if (query.containsKey("difficulty")) {
+            try {
+                difficulty = Integer.decode(query.get("difficulty"));
+            } catch (NumberFormatException e) {
+                difficulty = -1;
+            }
+            if (!Difficulty.isValid(difficulty)) {
+                throw new HttpError(400, "difficulty must be 1 to 64 zeroes or a compact target");
+            }
+        }
+        String tx = new String(readBody(exchange), StandardCharsets.UTF_8);
+        Job job = new Job(nextJob.getAndIncrement(), tx, difficulty);
+        synchronized (queue) {
+            if (queue.size() >= maxJobs) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                throw new HttpError(503, "mining queue is full");
+            }
+            jobs.put(job.id, job);
+            queue.addLast(job);
+            queue.notifyAll();
+        }
+        send(exchange, 202, "{\"job\":" + job.id + ",\"state\":\"queued\"}");
+    }
+
+    private void job(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "GET");
+        long id;
+        try {
+            id = Long.parseLong(lastSegment(exchange));
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "bad job id");
+        }
+        Job job = jobs.get(id);
+        if (job == null) {
+            throw new HttpError(404, "no job " + id);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"job\":").append(job.id);
+        sb.append(",\"state\":").append(quote(job.state.name().toLowerCase()));
+        if (job.state == State.DONE) {
+            sb.append(",\"block\":").append(job.block);
+            sb.append(",\"hash\":").append(quote(job.hash));
+        } else if (job.state == State.FAILED) {
+            sb.append(",\"error\":").append(quote(job.error));
+        }
+        sb.append('}');
+        send(exchange, 200, sb.toString());
+    }
+
+    private void verify(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "GET");
+        long start = System.nanoTime();
+        int bad;
+        try {
+            bad = chain.firstInvalidBlock();
+        } finally {
+            ChainMetrics.get().recordValidation(System.nanoTime() - start);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"valid\":").append(bad < 0);
+        if (bad >= 0) {
+            sb.append(",\"firstInvalid\":").append(bad);
+            sb.append(",\"problem\":").append(quote(ChainValidator.problem(chain.get(bad), chain.get(bad - 1))));
+        }
+        sb.append(",\"millis\":").append((System.nanoTime() - start) / 1_000_000);
+        sb.append('}');
+        send(exchange, 200, sb.toString());
+    }
+
+    private void block(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "GET");
+        List<Block> blocks = chain.snapshot();
+        String which = lastSegment(exchange);
+        int i;
+        if (which.equals("latest")) {
+            i = blocks.size() - 1;
+        } else {
+            try {
+                i = Integer.parseInt(which);
+            } catch (NumberFormatException e) {
+                throw new HttpError(400, "bad block index");
+            }
+        }
+        if (i < 0 || i >= blocks.size()) {
+            throw new HttpError(404, "no block " + which);
+        }
+        StringBuilder sb = new StringBuilder();
+        JsonChainWriter.appendBlock(sb, blocks.get(i));
+        send(exchange, 200, sb.toString());
+    }
+
+    private void export(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "GET");
+        Map<String, String> query = query(exchange);
+        ChainExporter exporter = new ChainExporter(chain);
+        int from = query.containsKey("from") ? intParam(query, "from") : 0;
+        int to = query.containsKey("to") ? intParam(query, "to") : Integer.MAX_VALUE;
+        if (from < 0 || to < from) {
+            throw new HttpError(400, "bad range " + from + " to " + to);
+        }
+        exporter.setRange(from, to);
+        ChainExporter.Format format;
+        try {
+            format = ChainExporter.Format.valueOf(query.getOrDefault("format", "json").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "format must be json or binary");
+        }
+        exporter.setFormat(format);
+        boolean gzip = Boolean.parseBoolean(query.get("gzip"));
+        exporter.setGzip(gzip);
+        exchange.getResponseHeaders().set("Content-Type", format == ChainExporter.Format.JSON ? "application/json" : "application/octet-stream");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        //length 0: the blocks are streamed in chunks as they are written
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exporter.export(out);
+        }
+    }
+
+    //the mining thread: one job at a time, or with a mempool a batch of the queued jobs in one block
+    private void mineJobs() {
+        Mempool mempool = chain.getMempool();
+        int batchSize = mempool == null ? 1 : mempool.getMaxTransactions();
+        while (running) {
+            List<Job> batch = new ArrayList<>();
+            synchronized (queue) {
+                while (running && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                //a batch is mined at the difficulty of its first job
+                while (!queue.isEmpty() && batch.size() < batchSize
+                        && (batch.isEmpty() || queue.peekFirst().difficulty == batch.get(0).difficulty)) {
+                    batch.add(queue.pollFirst());
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Job job : batch) {
+                job.state = State.MINING;
+            }
+            try {
+                Block block;
+                do {
+                    //the menu may add a block meanwhile, then the block is mined again on the new tip
+                    block = nextBlock(batch, mempool != null);
+                } while (!chain.tryAddBlock(block));
+                for (Job job : batch) {
+                    job.block = block.index;
+                    job.hash = block.hash;
+                    job.state = State.DONE;
+                    retire(job);
+                }
+            } catch (RuntimeException e) {
+                for (Job job : batch) {
+                    fail(job, String.valueOf(e));
+                }
+            }
+        }
+    }
+
+    //a mined block after the latest one, holding the transactions of the jobs
+    private Block nextBlock(List<Job> batch, boolean batched) {
+        int difficulty = batch.get(0).difficulty;
+        if (difficulty == 0) {
+            difficulty = chain.nextDifficulty();
+        }
+        Block block;
+        if (batched) {
+            List<String> txs = new ArrayList<>(batch.size());
+            for (Job job : batch) {
+                txs.add(job.tx);
+            }
+            block = new Block(chain.getChainSize(), chain.getTime(), txs, difficulty);
+        } else {
+            block = new Block(chain.getChainSize(), chain.getTime(), batch.get(0).tx, difficulty);
+        }
+        block.setPreviousHash(chain.getLatestBlock().hash);
+        if (miner != null) {
+            miner.mine(block, difficulty);
+        } else {
+            block.proofOfWork(difficulty);
+        }
+        return block;
+    }
+
+    private void fail(Job job, String error) {
+        job.error = error;
+        job.state = State.FAILED;
+        retire(job);
+    }
+
+    //finished jobs are kept for lookups, the oldest are forgotten
+    private void retire(Job job) {
+        synchronized (finished) {
+            finished.addLast(job.id);
+            while (finished.size() > KEPT_JOBS) {
+                jobs.remove(finished.pollFirst());
+            }
+        }
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+            exchange.getResponseHeaders().set("Allow", method);
+            throw new HttpError(405, "use " + method);
+        }
+    }
+
+    private static String lastSegment(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null || raw.isEmpty()) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> query, String name) {
+        try {
+            return Integer.parseInt(query.get(name));
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, name + " must be an integer");
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY + 1);
+            if (body.length > MAX_BODY) {
+                throw new HttpError(413, "transaction larger than " + MAX_BODY + " bytes");
+            }
+            return body;
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            JsonChainWriter.appendString(sb, s);
+        } catch (IOException e) {
+            //a StringBuilder does not throw
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Runs a server for a chain until the process is stopped. The chain is
+     * loaded from -Dblockchain.store=file if set, otherwise it starts with a
+     * genesis block.
+     *
+     * @param args the port, default 8080
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        BlockChain chain = new BlockChain();
+        BlockStore store = BlockStore.fromSystemProperties();
+        chain.setStore(store);
+        if (store != null) {
+            chain.loadFromStore();
+        }
+        if (chain.getChainSize() == 0) {
+            Block genesis = new Block(0, chain.getTime(), "Genesis", 2);
+            genesis.proofOfWork(2);
+            chain.addBlock(genesis);
+        }
+        ChainMetrics.get().register();
+        ChainServer server = new ChainServer(chain, args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.start();
+        System.out.format("Serving %d blocks on %s port %d (%s) %n", chain.getChainSize(), server.getHost(), server.getPort(),
+                server.isVirtualThreads() ? "virtual threads" : Integer.getInteger("blockchain.http.threads", 64) + " threads");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    System.out.println("**Error: cannot close the block store: " + e.getMessage());
+                }
+            }
+        }));
+    }
+
+}//end class
@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * This is the ChainValidator class that checks the blocks of a chain. A block
+ * is valid when its hash matches its contents (and the Merkle root of a
+ * batched block matches its transactions), the hash has the leading zeroes
+ * its difficulty asks for, and its previousHash is the hash of its parent.
+ * Each of these checks only looks at the block and its parent, so the chain
+ * can be cut into segments that are checked on a pool of threads.
+ *
+ * Every segment is checked from low to high index and the lowest failing index
+ * seen so far is shared, so segments above it stop early. The answer is the
+ * lowest failing index of the whole chain, the same as a sequential check.
+ */
+final class ChainValidator {
+
+    private static final int SEGMENTS_PER_THREAD = 4; //more segments than threads to even out the load
+
+    private final int threads;
+    private final ExecutorService pool;
+
+    /**
+     * threads - the number of threads that check segments
+     *
+     * @param threads
+     */
+    ChainValidator(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+        this.threads = threads;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "validator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * the number of threads of this validator
+     *
+     * @return
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Describes what is wrong with a block. The genesis block has no parent,
+     * so its parent is null and its link is not checked.
+     *
+     * @param block
+     * @param parent
+     * @return null if the block is valid
+     */
+    static String problem(Block block, Block parent) {
+        //currentBlock.hash comes from Block's proof of work
+        if (!block.hash.equals(block.calculateHash())) {
+            return "Improper hash on node " + block.index;
+        }
+        if (block.isBatched() && !block.merkleRoot.equals(MerkleTree.root(block.transactions))) {
+            return "Improper Merkle root on node " + block.index;
+        }
+        if (!Difficulty.isValid(block.difficulty)) {
+            return "Improper difficulty on node " + block.index + " " + block.difficulty;
+        }
+        if (!Block.meetsDifficulty(block.hash, block.difficulty)) {
+            if (Difficulty.isTarget(block.difficulty)) {
+                return "Improper proof of work on node " + block.index + " Is above its " + Difficulty.describe(block.difficulty);
+            }
+            return "Improper proof of work on node " + block.index + " Does not begin with " + block.difficulty + " zeroes";
+        }
+        if (parent != null && !parent.hash.equals(block.previousHash)) {
+            return "Improper previous hash on node " + block.index;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the blocks from index 1 to the end, one after another.
+     *
+     * @param blocks
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    static int firstInvalid(List<Block> blocks) {
+        return firstInvalid(blocks, 1);
+    }
+
+    /**
+     * Checks the blocks from the given index to the end, one after another.
+     * The blocks below from are trusted.
+     *
+     * @param blocks
+     * @param from an index >= 1
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    static int firstInvalid(List<Block> blocks, int from) {
+        return firstInvalid(blocks, from, blocks.size());
+    }
+
+    /**
+     * Checks the blocks from the given index up to, not including, to, one
+     * after another.
+     *
+     * @param blocks
+     * @param from an index >= 1
+     * @param to
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    static int firstInvalid(List<Block> blocks, int from, int to) {
+        return firstInvalid(blocks, Math.max(1, from), to, new AtomicInteger(Integer.MAX_VALUE));
+    }
+
+    //checks [from, to) and stops at the first failure or once a lower failure is known
+    private static int firstInvalid(List<Block> blocks, int from, int to, AtomicInteger lowest) {
+        if (blocks instanceof ColumnarBlockList.View) {
+            //checked on the columns, no Block is built
+            return ((ColumnarBlockList.View) blocks).firstInvalid(from, to, lowest);
+        }
+        for (int i = from; i < to && i < lowest.get(); i++) {
+            if (problem(blocks.get(i), blocks.get(i - 1)) != null) {
+                int current = lowest.get();
+                while (i < current && !lowest.compareAndSet(current, i)) {
+                    current = lowest.get();
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the blocks from index 1 to the end in parallel segments. The
+     * blocks must not change while they are checked.
+     *
+     * @param blocks
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    public int firstInvalidParallel(List<Block> blocks) {
+        return firstInvalidParallel(blocks, 1);
+    }
+
+    /**
+     * Checks the blocks from the given index to the end in parallel segments.
+     * The blocks below from are trusted.
+     *
+     * @param blocks
+     * @param from an index >= 1
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    public int firstInvalidParallel(List<Block> blocks, int from) {
+        return firstInvalidParallel(blocks, from, blocks.size());
+    }
+
+    /**
+     * Checks the blocks from the given index up to, not including, size in
+     * parallel segments.
+     *
+     * @param blocks
+     * @param from an index >= 1
+     * @param size
+     * @return the lowest index of an invalid block, -1 if all are valid
+     */
+    public int firstInvalidParallel(List<Block> blocks, int from, int size) {
+        from = Math.max(1, from);
+        int segments = threads * SEGMENTS_PER_THREAD;
+        int length = Math.max(1, (size - from + segments - 1) / segments);
+        if (threads == 1 || size - from <= length) {
+            return firstInvalid(blocks, from, size);
+        }
+        AtomicInteger lowest = new AtomicInteger(Integer.MAX_VALUE);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int segment = from; segment < size; segment += length) {
+            final int start = segment;
+            final int end = Math.min(size, segment + length);
+            tasks.add(() -> firstInvalid(blocks, start, end, lowest));
+        }
+        try {
+            for (Future<Integer> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return lowest.get() == Integer.MAX_VALUE ? -1 : lowest.get();
+    }
+
+    /**
+     * stops the validation threads
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+}//end class
@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * This is the ChainWorkload class, a headless driver that puts a chain
+ * through the operations of the menu of BlockChain.main: bursts of added
+ * transactions (option 1), corruption of a block's data (option 4),
+ * verification (option 2) and repair (option 5). A workload is either read
+ * from a script or generated from a seed, and block times are derived from
+ * the block index, so the same seed or script mines the same blocks and does
+ * the same work on every run. That makes runs comparable when the mining,
+ * validation or repair code changes.
+ *
+ * The driver also checks the chain as it goes: a verification must find the
+ * lowest block corrupted since the last repair (or nothing), and a repair
+ * must leave a valid chain. Every failed check is reported and makes the run
+ * exit with status 1.
+ *
+ * It reports the count, throughput and latency percentiles of each operation,
+ * and with -o writes them as JSON. -record writes the generated workload as a
+ * script so it can be replayed or edited.
+ *
+ * Script lines: "add n [difficulty]", "corrupt block data", "verify",
+ * "repair"; blank lines and lines starting with # are skipped.
+ *
+ * run: java ChainWorkload [-seed 1] [-ops 1000] [-mix
+ * add=70,corrupt=5,verify=20,repair=5] [-burst 8] [-difficulty 3] [-full]
+ * [-script file] [-record file] [-o results.json]
+ */
+final class ChainWorkload {
+
+    private static final long BASE_TIME = 1552608000000L; //the time of the genesis block, blocks follow a second apart
+    private static final String[] KINDS = {"add", "corrupt", "verify", "repair"};
+
+    /**
+     * one operation of a workload
+     */
+    static final class Step {
+
+        final String kind;
+        final int count; //blocks added by an add
+        final int difficulty; //of the blocks added
+        final int block; //the block corrupted
+        final String data; //its new data
+
+        Step(String kind, int count, int difficulty, int block, String data) {
+            this.kind = kind;
+            this.count = count;
+            this.difficulty = difficulty;
+            this.block = block;
+            this.data = data;
+        }
+
+        /**
+         * the step as a script line
+         *
+         * @return
+         */
+        @Override
+        public String toString() {
+            switch (kind) {
+                case "add":
+                    return "add " + count + " " + difficulty;
+                case "corrupt":
+                    return "corrupt " + block + " " + data;
+                default:
+                    return kind;
+            }
+        }
+
+        /**
+         * reads a script line
+         *
+         * @param line
+         * @param difficulty the difficulty of an add that gives none
+         * @return null for a blank or comment line
+         */
+        static Step parse(String line, int difficulty) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                return null;
+            }
+            String[] parts = trimmed.split("\\s+", 3);
+            switch (parts[0]) {
+                case "add":
+                    return new Step("add", parts.length > 1 ? Integer.parseInt(parts[1]) : 1,
+                            parts.length > 2 ? Integer.decode(parts[2]) : difficulty, -1, null);
+                case "corrupt":
+                    if (parts.length < 3) {
+                        throw new IllegalArgumentException("corrupt needs a block and data: " + line);
+                    }
+                    return new Step("corrupt", 0, 0, Integer.parseInt(parts[1]), parts[2]);
+                case "verify":
+                case "repair":
+                    return new Step(parts[0], 0, 0, -1, null);
+                default:
+                    throw new IllegalArgumentException("unknown operation: " + line);
+            }
+        }
+    }
+
+    private final BlockChain chain;
+    private boolean fullVerify; //every verification checks the whole chain, not only what changed
+    //latency of each operation in nanoseconds, in the order of KINDS
+    private final Map<String, Histogram> latency = new LinkedHashMap<>();
+    private int dirty = -1; //the lowest block corrupted since the last repair, -1 for none
+    private int skipped; //corruptions of blocks the chain does not have
+    private final List<String> failures = new ArrayList<>();
+
+    /**
+     * @param chain a chain holding at least the genesis block
+     */
+    ChainWorkload(BlockChain chain) {
+        this.chain = chain;
+        for (String kind : KINDS) {
+            latency.put(kind, new Histogram());
+        }
+    }
+
+    /**
+     * fullVerify - reset the verified blocks before each verification, so it
+     * costs the whole chain like a first verification after a restart
+     *
+     * @param fullVerify
+     */
+    public void setFullVerify(boolean fullVerify) {
+        this.fullVerify = fullVerify;
+    }
+
+    /**
+     * Generates a workload. Corrupted blocks are chosen among the blocks the
+     * chain will have by then.
+     *
+     * @param seed
+     * @param ops the number of steps
+     * @param weights the weight of add, corrupt, verify and repair
+     * @param burst the most blocks of one add step, the size is random from 1
+     * @param difficulty of the blocks added
+     * @param size the size of the chain before the workload
+     * @return
+     */
+    static List<Step> generate(long seed, int ops, int[] weights, int burst, int difficulty, int size) {
+        Random random = new Random(seed);
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("the mix has no weight");
+        }
+        List<Step> steps = new ArrayList<>(ops);
+        while (steps.size() < ops) {
+            int pick = random.nextInt(total);
+            int kind = 0;
+            while (pick >= weights[kind]) {
+                pick -= weights[kind++];
+            }
+            switch (KINDS[kind]) {
+                case "add":
+                    int count = 1 + random.nextInt(Math.max(1, burst));
+                    steps.add(new Step("add", count, difficulty, -1, null));
+                    size += count;
+                    break;
+                case "corrupt":
+                    if (size < 2) {
+                        //only the genesis block, which is never verified
+                        continue;
+                    }
+                    steps.add(new Step("corrupt", 0, 0, 1 + random.nextInt(size - 1), "chaos " + Integer.toHexString(random.nextInt())));
+                    break;
+                default:
+                    steps.add(new Step(KINDS[kind], 0, 0, -1, null));
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * runs the steps one after another
+     *
+     * @param steps
+     * @return the time taken in nanoseconds
+     */
+    public long run(List<Step> steps) {
+        long start = System.nanoTime();
+        for (int i = 0; i < steps.size(); i++) {
+            run(i, steps.get(i));
+        }
+        return System.nanoTime() - start;
+    }
+
+    //one step, every block of an add is timed on its own
+    private void run(int stepNo, Step step) {
+        switch (step.kind) {
+            case "add":
+                for (int k = 0; k < step.count; k++) {
+                    long start = System.nanoTime();
+                    int index = chain.getChainSize();
+                    Block b = new Block(index, new Timestamp(BASE_TIME + 1000L * index), "load " + stepNo + "." + k, step.difficulty);
+                    b.setPreviousHash(chain.getLatestBlock().hash);
+                    b.proofOfWork(step.difficulty);
+                    chain.addBlock(b);
+                    latency.get("add").record(System.nanoTime() - start);
+                }
+                break;
+            case "corrupt": {
+                if (step.block < 1 || step.block >= chain.getChainSize()) {
+                    skipped++;
+                    break;
+                }
+                long start = System.nanoTime();
+                //like option 4: change the data and save the block again
+                Block b = chain.get(step.block);
+                boolean changed = !step.data.equals(b.getData());
+                b.setData(step.data);
+                chain.saveBlock(chain.get(step.block));
+                latency.get("corrupt").record(System.nanoTime() - start);
+                if (changed && (dirty < 0 || step.block < dirty)) {
+                    dirty = step.block;
+                }
+                break;
+            }
+            case "verify": {
+                if (fullVerify) {
+                    chain.resetVerified();
+                }
+                long start = System.nanoTime();
+                int bad = chain.firstInvalidBlock();
+                latency.get("verify").record(System.nanoTime() - start);
+                if (bad != dirty) {
+                    fail(stepNo, step, "found block " + bad + " invalid, expected " + dirty);
+                }
+                break;
+            }
+            case "repair": {
+                long start = System.nanoTime();
+                chain.repairChain();
+                latency.get("repair").record(System.nanoTime() - start);
+                dirty = -1;
+                int bad = chain.firstInvalidBlock();
+                if (bad >= 0) {
+                    fail(stepNo, step, "left block " + bad + " invalid");
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown operation " + step.kind);
+        }
+    }
+
+    private void fail(int stepNo, Step step, String problem) {
+        String failure = "step " + stepNo + " (" + step + ") " + problem;
+        failures.add(failure);
+        System.out.println("**Error: " + failure);
+    }
+
+    /**
+     * the checks that failed
+     *
+     * @return
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * prints the count, throughput and latency of each operation
+     *
+     * @param elapsedNanos the time of the whole run
+     */
+    public void printReport(long elapsedNanos) {
+        System.out.format(Locale.ROOT, "%-8s %8s %12s %10s %10s %10s %10s%n", "op", "count", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Histogram> e : latency.entrySet()) {
+            Histogram h = e.getValue();
+            System.out.format(Locale.ROOT, "%-8s %8d %12.1f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(), h.getCount(), opsPerSecond(h),
+                    h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6);
+        }
+        System.out.format(Locale.ROOT, "%d blocks in %.2f s, %d corruptions skipped, %d failed checks%n",
+                chain.getChainSize(), elapsedNanos / 1e9, skipped, failures.size());
+        //the same workload ends on the same chain
+        System.out.println("chain hash " + chain.getChainHash());
+    }
+
+    //operations per second of the time spent in the operation
+    private static double opsPerSecond(Histogram h) {
+        return h.getSum() == 0 ? 0 : h.getCount() * 1e9 / h.getSum();
+    }
+
+    /**
+     * Writes the results as JSON: the settings of the run and one object per
+     * operation.
+     *
+     * @param out
+     * @param settings
+     * @param elapsedNanos
+     * @throws IOException
+     */
+    public void writeJson(Writer out, String settings, long elapsedNanos) throws IOException {
+        out.write(String.format(Locale.ROOT, "{\"settings\":\"%s\",\"blocks\":%d,\"seconds\":%.6f,\"failedChecks\":%d,\"operations\":[%n",
+                settings.replace("\\", "\\\\").replace("\"", "\\\""), chain.getChainSize(), elapsedNanos / 1e9, failures.size()));
+        int n = 0;
+        for (Map.Entry<String, Histogram> e : latency.entrySet()) {
+            Histogram h = e.getValue();
+            out.write(String.format(Locale.ROOT,
+                    "  {\"operation\":\"%s\",\"count\":%d,\"opsPerSecond\":%.3f,\"p50Ms\":%.6f,\"p90Ms\":%.6f,\"p99Ms\":%.6f,\"maxMs\":%.6f}%s%n",
+                    e.getKey(), h.getCount(), opsPerSecond(h), h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6,
+                    h.getPercentile(99) / 1e6, h.getMax() / 1e6, ++n < latency.size() ? "," : ""));
+        }
+        out.write("]}\n");
+    }
+
+    //"add=70,corrupt=5,verify=20,repair=5" in the order of KINDS, missing ones weigh 0
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[KINDS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            int kind = -1;
+            for (int i = 0; i < KINDS.length; i++) {
+                if (KINDS[i].equals(kv[0])) {
+                    kind = i;
+                }
+            }
+            if (kind < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("bad mix entry " + part);
+            }
+            weights[kind] = Integer.parseInt(kv[1]);
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        int ops = 1000;
+        String mix = "add=70,corrupt=5,verify=20,repair=5";
+        int burst = 8;
+        int difficulty = 3;
+        boolean full = false;
+        String script = null;
+        String record = null;
+        String outFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "-ops":
+                    ops = Integer.parseInt(args[++i]);
+                    break;
+                case "-mix":
+                    mix = args[++i];
+                    break;
+                case "-burst":
+                    burst = Integer.parseInt(args[++i]);
+                    break;
+                case "-difficulty":
+                    difficulty = Integer.decode(args[++i]);
+                    break;
+                case "-full":
+                    full = true;
+                    break;
+                case "-script":
+                    script = args[++i];
+                    break;
+                case "-record":
+                    record = args[++i];
+                    break;
+                case "-o":
+                    outFile = args[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        BlockChain bc = new BlockChain();
+        BlockStore store = BlockStore.fromSystemProperties();
+        bc.setStore(store);
+        if (store != null) {
+            bc.loadFromStore();
+        }
+        if (bc.getChainSize() == 0) {
+            Block genesis = new Block(0, new Timestamp(BASE_TIME), "Genesis", 2);
+            genesis.proofOfWork(2);
+            bc.addBlock(genesis);
+        }
+
+        List<Step> steps = new ArrayList<>();
+        String settings;
+        if (script != null) {
+            int n = 0;
+            for (String line : Files.readAllLines(Path.of(script), StandardCharsets.UTF_8)) {
+                n++;
+                try {
+                    Step step = Step.parse(line, difficulty);
+                    if (step != null) {
+                        steps.add(step);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(script + " line " + n + ": " + e.getMessage(), e);
+                }
+            }
+            settings = "script " + script;
+        } else {
+            steps = generate(seed, ops, parseMix(mix), burst, difficulty, bc.getChainSize());
+            settings = String.format("seed %d, ops %d, mix %s, burst %d, difficulty %d", seed, ops, mix, burst, difficulty);
+        }
+        if (full) {
+            settings += ", full verify";
+        }
+        if (record != null) {
+            List<String> lines = new ArrayList<>();
+            lines.add("# " + settings);
+            for (Step step : steps) {
+                lines.add(step.toString());
+            }
+            Files.write(Path.of(record), lines, StandardCharsets.UTF_8);
+        }
+
+        ChainWorkload workload = new ChainWorkload(bc);
+        workload.setFullVerify(full);
+        System.out.println("Running " + steps.size() + " steps: " + settings);
+        long elapsed = workload.run(steps);
+        workload.printReport(elapsed);
+        if (outFile != null) {
+            try (Writer out = Files.newBufferedWriter(Path.of(outFile), StandardCharsets.UTF_8)) {
+                workload.writeJson(out, settings, elapsed);
+            }
+            System.out.println("Results written to " + outFile);
+        }
+        if (store != null) {
+            store.close();
+        }
+        if (!workload.getFailures().isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+}//end class
@@ -0,0 +1,558 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * This is the ColumnarBlockList class, the list of blocks of a chain held in
+ * memory as columns of primitives instead of Block objects. A Block costs
+ * hundreds of bytes of headers, Timestamps, BigIntegers and 64 character hex
+ * Strings; here a block is a row of segment arrays: its time in milliseconds,
+ * difficulty, nonce, a byte of flags, its hash as 32 raw bytes and its data
+ * (or Merkle root) as UTF-8 bytes, about 60 bytes plus the data. The index of
+ * a block is its row and its previousHash is not stored at all when it is the
+ * hash of the row before, which is the case for every block of a valid chain.
+ *
+ * Whatever does not fit the columns (a Timestamp with sub-millisecond nanos, a
+ * nonce wider than a long, a hash that is not 64 hex digits, a previousHash
+ * that does not link, the transactions of a batched block) is kept in a small
+ * map of the row's segment, so the list holds any block exactly.
+ *
+ * A Block is only built when get asks for it, and the view is linked to the
+ * chain, so a change to it is written back to its row by
+ * BlockChain.blockChanged. Verifying the chain does not build Blocks at all:
+ * View.firstInvalid hashes each row straight from the columns into a reused
+ * buffer and checks the proof of work and the link on the raw bytes, walking
+ * the arrays in order.
+ *
+ * Rows are read and written under the lock of the list. The size is volatile
+ * so it can be read without the lock, and rows are never removed.
+ */
+final class ColumnarBlockList extends AbstractList<Block> implements RandomAccess {
+
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS; //rows per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int HASH_BYTES = 32;
+
+    //flags of a row
+    private static final byte HAS_NONCE = 1;
+    private static final byte BATCHED = 2;
+    private static final byte LINKED = 4; //previousHash is the hash of the row before
+    private static final byte EXTRA = 8; //some fields are in the segment's extras
+
+    //the fields of a row that do not fit its columns
+    private static final class Extra {
+
+        boolean exactTime; //timestamp holds the Timestamp, it is null or has sub-millisecond nanos
+        Timestamp timestamp;
+        BigInteger wideNonce;
+        String hash; //set when the hash is not 64 lower case hex digits
+        boolean unlinked; //previousHash holds the previous hash, it does not link to the row before
+        String previousHash;
+        boolean nullPayload; //the data (or Merkle root) is null
+        List<String> transactions;
+        String data; //the data of a batched block, normally null
+
+        boolean isEmpty() {
+            return !exactTime && wideNonce == null && hash == null && !unlinked && !nullPayload && transactions == null && data == null;
+        }
+    }
+
+    //the columns of SEGMENT_SIZE rows
+    private static final class Segment {
+
+        final long[] times = new long[SEGMENT_SIZE];
+        final int[] difficulties = new int[SEGMENT_SIZE];
+        final long[] nonces = new long[SEGMENT_SIZE];
+        final byte[] flags = new byte[SEGMENT_SIZE];
+        final byte[] hashes = new byte[SEGMENT_SIZE * HASH_BYTES];
+        final int[] payloadEnds = new int[SEGMENT_SIZE]; //the payload of row r ends here and starts at the end of row r - 1
+        byte[] payloads = new byte[SEGMENT_SIZE * 16];
+        final Map<Integer, Extra> extras = new HashMap<>(); //by row within the segment
+
+        int payloadStart(int r) {
+            return r == 0 ? 0 : payloadEnds[r - 1];
+        }
+
+        /**
+         * Sets the payload of row r, the rows after it move up or down when
+         * its length changes. Rows are set in order, so this only moves bytes
+         * when a block is changed. The bytes of a full segment are trimmed to
+         * the payloads it holds, only the last segment keeps room to grow.
+         *
+         * @param r
+         * @param rows the rows set so far
+         * @param payload
+         */
+        void setPayload(int r, int rows, byte[] payload) {
+            int start = payloadStart(r);
+            int oldEnd = r < rows ? payloadEnds[r] : start;
+            int used = rows == 0 ? 0 : payloadEnds[rows - 1];
+            int shift = payload.length - (oldEnd - start);
+            int needed = used + shift;
+            boolean full = Math.max(rows, r + 1) == SEGMENT_SIZE;
+            if (needed > payloads.length) {
+                //a segment still filling grows by half, a full one to what it holds
+                payloads = Arrays.copyOf(payloads, full ? needed : Math.max(needed, payloads.length + payloads.length / 2));
+            }
+            if (shift != 0 && oldEnd < used) {
+                System.arraycopy(payloads, oldEnd, payloads, oldEnd + shift, used - oldEnd);
+            }
+            System.arraycopy(payload, 0, payloads, start, payload.length);
+            payloadEnds[r] = start + payload.length;
+            for (int i = r + 1; i < rows; i++) {
+                payloadEnds[i] += shift;
+            }
+            if (full && payloads.length > needed) {
+                payloads = Arrays.copyOf(payloads, needed);
+            }
+        }
+
+        long bytes() {
+            return 8L * SEGMENT_SIZE * 3 + SEGMENT_SIZE + SEGMENT_SIZE * HASH_BYTES + payloads.length + 64L * extras.size();
+        }
+    }
+
+    private final BlockChain chain; //blocks built from rows are linked to this chain
+    private Segment[] segments = new Segment[0];
+    private volatile int size;
+
+    /**
+     * @param chain the chain the blocks belong to, null for none
+     */
+    ColumnarBlockList(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * the blocks as they are now; later appends are not seen through it
+     *
+     * @return
+     */
+    public View snapshot() {
+        return new View(this, size);
+    }
+
+    /**
+     * A list of the first size blocks of a ColumnarBlockList, the way
+     * BlockChain.snapshot hands out a chain. It can verify its blocks without
+     * building them.
+     */
+    static final class View extends AbstractList<Block> implements RandomAccess {
+
+        private final ColumnarBlockList list;
+        private final int size;
+
+        private View(ColumnarBlockList list, int size) {
+            this.list = list;
+            this.size = size;
+        }
+
+        @Override
+        public Block get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("block " + i + " of " + size);
+            }
+            return list.get(i);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Checks the blocks [from, to) like ChainValidator.problem does, on the
+         * columns, and stops at the first failure or once a lower failure is
+         * known.
+         *
+         * @param from an index >= 1
+         * @param to
+         * @param lowest the lowest failing index known, lowered on a failure
+         * @return the index of the first invalid block, -1 if there is none
+         */
+        int firstInvalid(int from, int to, AtomicInteger lowest) {
+            Check check = new Check();
+            for (int i = from; i < Math.min(to, size) && i < lowest.get(); i++) {
+                if (!list.isValid(i, check)) {
+                    int current = lowest.get();
+                    while (i < current && !lowest.compareAndSet(current, i)) {
+                        current = lowest.get();
+                    }
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    @Override
+    public Block get(int i) {
+        Block b;
+        synchronized (this) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("block " + i + " of " + size);
+            }
+            b = build(i);
+        }
+        b.chain = chain;
+        return b;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a block as a new row. The block itself is not kept.
+     *
+     * @param b
+     * @return
+     */
+    @Override
+    public synchronized boolean add(Block b) {
+        int i = size;
+        if (i >>> SEGMENT_BITS == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length + 1);
+            segments[segments.length - 1] = new Segment();
+        }
+        write(i, b);
+        //the volatile write publishes the row together with the new size
+        size = i + 1;
+        return true;
+    }
+
+    @Override
+    public synchronized Block set(int i, Block b) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("block " + i + " of " + size);
+        }
+        Block old = build(i);
+        update(i, b);
+        return old;
+    }
+
+    /**
+     * Writes a block over the row of its index, for a block that changed
+     * after it was added. Does nothing if there is no such row.
+     *
+     * @param b
+     */
+    public synchronized void update(Block b) {
+        if (b.index >= 0 && b.index < size) {
+            update(b.index, b);
+        }
+    }
+
+    //writes over row i, holds the lock
+    private void update(int i, Block b) {
+        String oldHash = hashAt(i);
+        if (!oldHash.equals(b.hash)) {
+            //the next row linked to the old hash, it keeps linking to it
+            unlink(i + 1, oldHash);
+        }
+        write(i, b);
+    }
+
+    /**
+     * the time of row i, in milliseconds, read from its column without
+     * building the block
+     *
+     * @param i
+     * @return
+     */
+    public synchronized long getTime(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("block " + i + " of " + size);
+        }
+        return segments[i >>> SEGMENT_BITS].times[i & SEGMENT_MASK];
+    }
+
+    /**
+     * about how many bytes of heap the rows take
+     *
+     * @return
+     */
+    public synchronized long getBytes() {
+        long bytes = 16L * segments.length;
+        for (Segment s : segments) {
+            bytes += s.bytes();
+        }
+        return bytes;
+    }
+
+    //stores the previous hash of a linked row explicitly, before the row it links to changes
+    private void unlink(int i, String previousHash) {
+        if (i >= size) {
+            return;
+        }
+        Segment s = segments[i >>> SEGMENT_BITS];
+        int r = i & SEGMENT_MASK;
+        if ((s.flags[r] & LINKED) == 0) {
+            return;
+        }
+        Extra e = s.extras.computeIfAbsent(r, k -> new Extra());
+        e.unlinked = true;
+        e.previousHash = previousHash;
+        s.flags[r] = (byte) ((s.flags[r] & ~LINKED) | EXTRA);
+    }
+
+    //writes the fields of a block to row i, the segment exists
+    private void write(int i, Block b) {
+        Segment s = segments[i >>> SEGMENT_BITS];
+        int r = i & SEGMENT_MASK;
+        int rows = Math.min(SEGMENT_SIZE, size - (i & ~SEGMENT_MASK));
+        Extra e = new Extra();
+        byte flags = 0;
+
+        s.times[r] = b.time;
+        if (b.timeStamp == null || b.timeStamp.getNanos() % 1_000_000 != 0) {
+            e.exactTime = true;
+            e.timestamp = b.timeStamp;
+        }
+        s.difficulties[r] = b.difficulty;
+        s.nonces[r] = b.nonce;
+        if (b.hasNonce) {
+            flags |= HAS_NONCE;
+            e.wideNonce = b.wideNonce;
+        }
+        byte[] raw = hashBytes(b.hash);
+        if (raw == null) {
+            e.hash = b.hash;
+            raw = new byte[HASH_BYTES];
+        }
+        System.arraycopy(raw, 0, s.hashes, r * HASH_BYTES, HASH_BYTES);
+        if (i > 0 && b.previousHash != null && b.previousHash.equals(hashAt(i - 1)) && hashBytes(b.previousHash) != null) {
+            flags |= LINKED;
+        } else {
+            e.unlinked = true;
+            e.previousHash = b.previousHash;
+        }
+        String payload = b.payload();
+        if (payload == null) {
+            e.nullPayload = true;
+        }
+        s.setPayload(r, rows, payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8));
+        if (b.transactions != null) {
+            flags |= BATCHED;
+            e.transactions = List.copyOf(b.transactions);
+            e.data = b.data;
+        }
+        if (e.isEmpty()) {
+            s.extras.remove(r);
+        } else {
+            flags |= EXTRA;
+            s.extras.put(r, e);
+        }
+        s.flags[r] = flags;
+    }
+
+    //the extras of a row, null if it has none
+    private static Extra extra(Segment s, int r) {
+        return (s.flags[r] & EXTRA) != 0 ? s.extras.get(r) : null;
+    }
+
+    //the hash of row i as text
+    private String hashAt(int i) {
+        Segment s = segments[i >>> SEGMENT_BITS];
+        int r = i & SEGMENT_MASK;
+        Extra e = extra(s, r);
+        if (e != null && e.hash != null) {
+            return e.hash;
+        }
+        return MiningHasher.toHex(Arrays.copyOfRange(s.hashes, r * HASH_BYTES, (r + 1) * HASH_BYTES));
+    }
+
+    //builds the block of row i
+    private Block build(int i) {
+        Segment s = segments[i >>> SEGMENT_BITS];
+        int r = i & SEGMENT_MASK;
+        Extra e = extra(s, r);
+        Timestamp timestamp;
+        if (e != null && e.exactTime) {
+            timestamp = e.timestamp == null ? null : (Timestamp) e.timestamp.clone();
+        } else {
+            timestamp = new Timestamp(s.times[r]);
+        }
+        String payload = e != null && e.nullPayload ? null
+                : new String(s.payloads, s.payloadStart(r), s.payloadEnds[r] - s.payloadStart(r), StandardCharsets.UTF_8);
+        BigInteger nonce = null;
+        if ((s.flags[r] & HAS_NONCE) != 0) {
+            nonce = e != null && e.wideNonce != null ? e.wideNonce : BigInteger.valueOf(s.nonces[r]);
+        }
+        String previousHash = (s.flags[r] & LINKED) != 0 ? hashAt(i - 1) : e.previousHash;
+        if ((s.flags[r] & BATCHED) != 0) {
+            return Block.restore(i, timestamp, e.data, previousHash, nonce, s.difficulties[r], hashAt(i), e.transactions, payload);
+        }
+        return Block.restore(i, timestamp, payload, previousHash, nonce, s.difficulties[r], hashAt(i));
+    }
+
+    /**
+     * The reused buffers of one verification pass, a View.firstInvalid call
+     * uses its own.
+     */
+    private static final class Check {
+
+        final MessageDigest md = MiningHasher.sha256();
+        byte[] input = new byte[256];
+        final byte[] digest = new byte[HASH_BYTES];
+        final byte[] hash = new byte[HASH_BYTES];
+        final byte[] parentHash = new byte[HASH_BYTES];
+        long timeMillis = Long.MIN_VALUE; //the time whose text is cached
+        byte[] timeText;
+        int targetDifficulty; //the difficulty whose target is cached
+        byte[] target;
+        int length;
+
+        void put(byte[] bytes, int off, int len) {
+            if (length + len > input.length) {
+                input = Arrays.copyOf(input, Math.max(input.length * 2, length + len));
+            }
+            System.arraycopy(bytes, off, input, length, len);
+            length += len;
+        }
+
+        void put(String text) {
+            byte[] bytes = String.valueOf(text).getBytes(StandardCharsets.UTF_8);
+            put(bytes, 0, bytes.length);
+        }
+
+        void putHex(byte[] bytes) {
+            byte[] hex = MiningHasher.toHex(bytes).getBytes(StandardCharsets.US_ASCII);
+            put(hex, 0, hex.length);
+        }
+
+        //the Timestamp text of a time with no sub-millisecond part, blocks of a chain often share one
+        byte[] timeText(long millis) {
+            if (millis != timeMillis) {
+                timeMillis = millis;
+                timeText = new Timestamp(millis).toString().getBytes(StandardCharsets.US_ASCII);
+            }
+            return timeText;
+        }
+
+        byte[] target(int difficulty) {
+            if (target == null || difficulty != targetDifficulty) {
+                targetDifficulty = difficulty;
+                target = Difficulty.targetBytes(difficulty);
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Checks row i the way ChainValidator.problem checks a block against its
+     * parent: the hash matches the fields, the Merkle root of a batched block
+     * matches its transactions, the hash meets the difficulty and the
+     * previousHash is the hash of row i - 1. The row is copied under the lock
+     * and hashed outside it.
+     *
+     * @param i an index >= 1
+     * @param check
+     * @return
+     */
+    private boolean isValid(int i, Check check) {
+        int difficulty;
+        boolean regularHash;
+        check.length = 0;
+        synchronized (this) {
+            Segment s = segments[i >>> SEGMENT_BITS];
+            int r = i & SEGMENT_MASK;
+            Extra e = extra(s, r);
+            byte flags = s.flags[r];
+            difficulty = s.difficulties[r];
+            regularHash = e == null || e.hash == null;
+            if (!regularHash) {
+                //a hash that is not 64 hex digits never matches a computed one
+                return false;
+            }
+            System.arraycopy(s.hashes, r * HASH_BYTES, check.hash, 0, HASH_BYTES);
+            if ((flags & BATCHED) != 0) {
+                String root = e.nullPayload ? null
+                        : new String(s.payloads, s.payloadStart(r), s.payloadEnds[r] - s.payloadStart(r), StandardCharsets.UTF_8);
+                if (root == null || !root.equals(MerkleTree.root(e.transactions))) {
+                    return false;
+                }
+            }
+            if ((flags & LINKED) == 0) {
+                if (e.previousHash == null || !e.previousHash.equals(hashAt(i - 1))) {
+                    return false;
+                }
+            }
+            //domain + index + timeStamp + data or Merkle root + previousHash + nonce + difficulty, as Block.calculateHash
+            if ((flags & BATCHED) != 0) {
+                check.put(Block.BATCHED_DOMAIN);
+            }
+            check.put(Integer.toString(i));
+            if (e != null && e.exactTime) {
+                check.put(String.valueOf(e.timestamp));
+            } else {
+                byte[] text = check.timeText(s.times[r]);
+                check.put(text, 0, text.length);
+            }
+            if (e != null && e.nullPayload) {
+                check.put("null");
+            } else {
+                check.put(s.payloads, s.payloadStart(r), s.payloadEnds[r] - s.payloadStart(r));
+            }
+            if ((flags & LINKED) != 0) {
+                Segment p = segments[(i - 1) >>> SEGMENT_BITS];
+                System.arraycopy(p.hashes, ((i - 1) & SEGMENT_MASK) * HASH_BYTES, check.parentHash, 0, HASH_BYTES);
+                check.putHex(check.parentHash);
+            } else {
+                check.put(e.previousHash);
+            }
+            if ((flags & HAS_NONCE) == 0) {
+                check.put("null");
+            } else {
+                check.put(e != null && e.wideNonce != null ? e.wideNonce.toString() : Long.toString(s.nonces[r]));
+            }
+            check.put(Integer.toString(difficulty));
+        }
+        check.md.reset();
+        check.md.update(check.input, 0, check.length);
+        try {
+            check.md.digest(check.digest, 0, HASH_BYTES);
+        } catch (DigestException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (!Arrays.equals(check.digest, check.hash)) {
+            return false;
+        }
+        if (Difficulty.isTarget(difficulty)) {
+            byte[] target = check.target(difficulty);
+            return target != null && Difficulty.meetsTarget(check.hash, target);
+        }
+        //like Block.meetsDifficulty, no hash meets an invalid difficulty
+        return Difficulty.isValid(difficulty) && MiningHasher.leadingZeroNibbles(check.hash, difficulty);
+    }
+
+    //a hash of 64 lower case hex digits as 32 bytes, null for any other text
+    private static byte[] hashBytes(String hash) {
+        if (hash == null || hash.length() != 2 * HASH_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int hi = Character.digit(hash.charAt(2 * i), 16);
+            int lo = Character.digit(hash.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0 || Character.isUpperCase(hash.charAt(2 * i)) || Character.isUpperCase(hash.charAt(2 * i + 1))) {
+                return null;
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+}//end class
@@ -0,0 +1,239 @@
+import java.math.BigInteger;
+
+/**
+ *
+ * This is the Difficulty class that reads the difficulty of a block. A
+ * difficulty has one of two forms, both held in the same int so blocks,
+ * codecs and stores keep a single field:
+ *
+ * a nibble count (0 to 64) - the hash must start with that many hex zeroes.
+ * This is the original form; every level is 16 times the work of the last.
+ *
+ * a compact target (0x01000000 and above) - the hash, read as a 256-bit
+ * number, must not be above the target. The int holds the target like the
+ * nBits field of a Bitcoin header: the high byte is the length of the target
+ * in bytes and the low three bytes are its leading bytes. Targets can be set
+ * to within a fraction of a percent, which is what retargeting needs.
+ *
+ * A block hashes the decimal text of its difficulty either way, so the hash
+ * of a block with a nibble difficulty is what it always was.
+ */
+final class Difficulty {
+
+    static final int MAX_NIBBLES = 64; //a SHA-256 hash has 64 hex digits
+    static final BigInteger MAX_TARGET = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+    private static final int MIN_COMPACT = 0x01000000; //the smallest int that is a compact target
+    private static final double TWO_256 = Math.pow(2, 256);
+    private static final int MAX_STEP = 4; //a retarget changes the work at most 4 times up or down
+
+    private Difficulty() {
+    }
+
+    /**
+     * whether a difficulty is a compact target rather than a nibble count
+     *
+     * @param difficulty
+     * @return
+     */
+    static boolean isTarget(int difficulty) {
+        return difficulty >= MIN_COMPACT;
+    }
+
+    /**
+     * whether a difficulty can be used: 1 to 64 nibbles or a compact target
+     * of at least 1
+     *
+     * @param difficulty
+     * @return
+     */
+    static boolean isValid(int difficulty) {
+        if (isTarget(difficulty)) {
+            return (difficulty & 0xffffff) != 0 && (difficulty & 0x800000) == 0 && target(difficulty).signum() > 0;
+        }
+        return difficulty > 0 && difficulty <= MAX_NIBBLES;
+    }
+
+    /**
+     * The 256-bit target of a difficulty, a hash meets the difficulty when it
+     * is not above it. n nibbles is the target 2^(256 - 4n) - 1.
+     *
+     * @param difficulty
+     * @return -1 if no hash can meet the difficulty
+     */
+    static BigInteger target(int difficulty) {
+        if (!isTarget(difficulty)) {
+            if (difficulty < 0 || difficulty > MAX_NIBBLES) {
+                return BigInteger.ONE.negate();
+            }
+            return BigInteger.ONE.shiftLeft(256 - 4 * difficulty).subtract(BigInteger.ONE);
+        }
+        int length = difficulty >>> 24;
+        BigInteger mantissa = BigInteger.valueOf(difficulty & 0x7fffff);
+        BigInteger target = length <= 3 ? mantissa.shiftRight(8 * (3 - length)) : mantissa.shiftLeft(8 * (length - 3));
+        return target.min(MAX_TARGET);
+    }
+
+    /**
+     * The compact form of a target. The target is rounded down to its three
+     * leading bytes and kept between 1 and MAX_TARGET.
+     *
+     * @param target
+     * @return
+     */
+    static int compact(BigInteger target) {
+        if (target.signum() <= 0) {
+            target = BigInteger.ONE;
+        }
+        target = target.min(MAX_TARGET);
+        int length = (target.bitLength() + 7) / 8;
+        int mantissa = length <= 3 ? target.shiftLeft(8 * (3 - length)).intValue() : target.shiftRight(8 * (length - 3)).intValue();
+        if ((mantissa & 0x800000) != 0) {
+            //the top bit of the mantissa is a sign bit in Bitcoin, it is kept clear here too
+            mantissa >>>= 8;
+            length++;
+        }
+        return length << 24 | mantissa;
+    }
+
+    /**
+     * The target of a difficulty as the 32 big-endian bytes a raw hash is
+     * compared with.
+     *
+     * @param difficulty
+     * @return null if no hash can meet the difficulty
+     */
+    static byte[] targetBytes(int difficulty) {
+        if (!isValid(difficulty)) {
+            return null;
+        }
+        BigInteger target = target(difficulty);
+        byte[] raw = target.toByteArray(); //big-endian, may have a leading 0 byte for the sign
+        byte[] bytes = new byte[32];
+        int n = Math.min(raw.length, 32);
+        System.arraycopy(raw, raw.length - n, bytes, 32 - n, n);
+        return bytes;
+    }
+
+    /**
+     * checks that a raw hash is not above a target, both 32 big-endian bytes
+     *
+     * @param hash
+     * @param target
+     * @return
+     */
+    static boolean meetsTarget(byte[] hash, byte[] target) {
+        for (int i = 0; i < 32; i++) {
+            int h = hash[i] & 0xff;
+            int t = target[i] & 0xff;
+            if (h != t) {
+                return h < t;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks that a hex hash is not above the target of a compact difficulty
+     *
+     * @param hash
+     * @param difficulty
+     * @return
+     */
+    static boolean meetsTarget(String hash, int difficulty) {
+        byte[] target = targetBytes(difficulty);
+        if (target == null || hash.length() != 64) {
+            return false;
+        }
+        //lower case hex of equal length sorts like the numbers it spells
+        return hash.compareTo(MiningHasher.toHex(target)) <= 0;
+    }
+
+    /**
+     * The expected number of hashes to meet a difficulty, 2^256 / (target +
+     * 1). Chains are compared by the sum of the work of their blocks.
+     *
+     * @param difficulty
+     * @return 0 for a difficulty isValid rejects, no hash proves work for it
+     */
+    static double work(int difficulty) {
+        if (!isValid(difficulty)) {
+            return 0;
+        }
+        BigInteger target = target(difficulty);
+        return TWO_256 / target.add(BigInteger.ONE).doubleValue();
+    }
+
+    /**
+     * The work of a difficulty as a whole number, 2^256 / (target + 1)
+     * rounded down like Bitcoin counts chain work. Sums of it are exact, so
+     * two chains of the same work always compare equal whatever the targets
+     * of their blocks; work(difficulty) is the same value as a double for
+     * rates and retargeting.
+     *
+     * @param difficulty
+     * @return 0 for a difficulty isValid rejects
+     */
+    static BigInteger exactWork(int difficulty) {
+        if (!isValid(difficulty)) {
+            return BigInteger.ZERO;
+        }
+        BigInteger target = target(difficulty);
+        return BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+    }
+
+    /**
+     * The difficulty whose expected work is the given number of hashes, as a
+     * compact target.
+     *
+     * @param work
+     * @return
+     */
+    static int ofWork(double work) {
+        if (!(work > 1)) {
+            return compact(MAX_TARGET);
+        }
+        if (work >= TWO_256) {
+            return compact(BigInteger.ONE);
+        }
+        //target + 1 = 2^256 / work, with the work written as a 53 bit integer times a power of 2
+        int exponent = Math.getExponent(work);
+        long mantissa = (long) Math.scalb(work, 52 - exponent);
+        return compact(BigInteger.ONE.shiftLeft(256 - exponent + 52).divide(BigInteger.valueOf(mantissa)).subtract(BigInteger.ONE));
+    }
+
+    /**
+     * The next difficulty for a block, from the hashes per millisecond
+     * measured over recent blocks and the wanted block time. The work moves at
+     * most MAX_STEP times up or down from the current difficulty so that one
+     * odd block time cannot swing it.
+     *
+     * @param current the difficulty of the most recent block
+     * @param hashesPerMilli the measured mining speed
+     * @param targetMillis the wanted time per block
+     * @return a compact target
+     */
+    static int retarget(int current, double hashesPerMilli, long targetMillis) {
+        double now = work(current);
+        double wanted = hashesPerMilli * targetMillis;
+        if (!(wanted > 0)) {
+            return isTarget(current) ? current : ofWork(now);
+        }
+        wanted = Math.max(now / MAX_STEP, Math.min(now * MAX_STEP, wanted));
+        return ofWork(wanted);
+    }
+
+    /**
+     * a difficulty as text, "4 zeroes" or "target 0x1f0ff000 (about 4096
+     * hashes)"
+     *
+     * @param difficulty
+     * @return
+     */
+    static String describe(int difficulty) {
+        if (!isTarget(difficulty)) {
+            return difficulty + " zeroes";
+        }
+        return String.format("target 0x%08x (about %.0f hashes)", difficulty, work(difficulty));
+    }
+
+}//end class
@@ -0,0 +1,30 @@
+import java.security.MessageDigest;
+
+/**
+ *
+ * This is the HashFunction interface, an implementation of the hash the chain
+ * is built on. Every hash of the chain (block hashes, mining, Merkle roots and
+ * transaction ids) is computed with a digest from the function Hashing
+ * selected at startup.
+ *
+ * Implementations of the same function must give the same output for every
+ * input; Hashing checks them against each other before it picks the fastest.
+ */
+interface HashFunction {
+
+    /**
+     * a short name such as "jdk" or "java"
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * A new digest, reset and ready to use. It must support clone, MiningHasher
+     * clones a digest that has hashed the fixed part of a block.
+     *
+     * @return
+     */
+    MessageDigest newDigest();
+
+}//end interface
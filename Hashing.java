@@ -0,0 +1,348 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ *
+ * This is the Hashing class that chooses the HashFunction of the process.
+ * There are two SHA-256 implementations: the JDK's provider ("jdk"), which the
+ * JIT replaces with the SHA instructions of the CPU where there are any, and
+ * Sha256 ("java"). At startup both are checked against the FIPS 180-4 test
+ * vectors and against each other (split updates, cloned midstates, lengths
+ * around the block boundaries), and the fastest one that passes is used.
+ * -Dblockchain.hash.impl=jdk|java skips the race, an implementation that
+ * fails the check is never used.
+ *
+ * -Dblockchain.hash=sha256d hashes everything twice, SHA-256 of SHA-256 like
+ * Bitcoin. It changes every hash of the chain, so a chain must be verified
+ * with the mode it was mined with.
+ *
+ * run: java Hashing - prints the check and a benchmark of every
+ * implementation
+ */
+final class Hashing {
+
+    private static final int WARMUP_HASHES = 20_000; //enough for the JIT to compile the digest
+    private static final long RACE_NANOS = 30_000_000; //measured time per implementation
+
+    //SHA-256 test vectors of FIPS 180-4
+    private static final String[][] VECTORS = {
+        {"", "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"},
+        {"abc", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"},
+        {"abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1"}
+    };
+    private static final String DOUBLE_ABC = "4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358"; //SHA-256(SHA-256("abc"))
+
+    /**
+     * an implementation with a name
+     */
+    private static final class Named implements HashFunction {
+
+        private final String name;
+        private final Supplier<MessageDigest> digests;
+
+        Named(String name, Supplier<MessageDigest> digests) {
+            this.name = name;
+            this.digests = digests;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public MessageDigest newDigest() {
+            return digests.get();
+        }
+    }
+
+    /**
+     * SHA-256 of SHA-256 with the digests of another function. Cloning it
+     * clones the inner digest, so a midstate works like it does for SHA-256.
+     */
+    private static final class DoubleDigest extends MessageDigest implements Cloneable {
+
+        private MessageDigest inner;
+        private byte[] first = new byte[32];
+
+        DoubleDigest(MessageDigest inner) {
+            super("SHA-256d");
+            this.inner = inner;
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 32;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            inner.update(input);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            inner.update(input, offset, len);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            byte[] out = new byte[32];
+            try {
+                engineDigest(out, 0, 32);
+            } catch (DigestException e) {
+                throw new RuntimeException(e);
+            }
+            return out;
+        }
+
+        @Override
+        protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+            inner.digest(first, 0, 32);
+            inner.update(first, 0, 32);
+            return inner.digest(buf, offset, len);
+        }
+
+        @Override
+        protected void engineReset() {
+            inner.reset();
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            DoubleDigest copy = (DoubleDigest) super.clone();
+            copy.inner = (MessageDigest) inner.clone();
+            copy.first = new byte[32];
+            return copy;
+        }
+    }
+
+    static final HashFunction JDK = new Named("jdk", () -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+    static final HashFunction JAVA = new Named("java", Sha256::new);
+
+    private static String report = ""; //how the function was chosen
+    private static String mode = "sha256";
+    private static final HashFunction SELECTED = select();
+    //one digest per thread, a digest is not thread safe
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(SELECTED::newDigest);
+
+    private Hashing() {
+    }
+
+    /**
+     * the function of this process
+     *
+     * @return
+     */
+    static HashFunction get() {
+        return SELECTED;
+    }
+
+    /**
+     * the digest of the calling thread, reset and ready to use
+     *
+     * @return
+     */
+    static MessageDigest digest() {
+        MessageDigest md = DIGESTS.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * how the function was chosen, for example "sha256 on java (jdk 650,
+     * java 720 hashes per ms)"
+     *
+     * @return
+     */
+    static String describe() {
+        return report;
+    }
+
+    /**
+     * "sha256", or "sha256d" when everything is hashed twice; chains mined in
+     * one mode are invalid in the other
+     *
+     * @return
+     */
+    static String getMode() {
+        return mode;
+    }
+
+    /**
+     * the same function hashing everything twice
+     *
+     * @param f
+     * @return
+     */
+    static HashFunction doubled(HashFunction f) {
+        return new Named(f.getName(), () -> new DoubleDigest(f.newDigest()));
+    }
+
+    //checks the implementations, races the ones that pass and applies the mode
+    private static HashFunction select() {
+        String wantedMode = System.getProperty("blockchain.hash", "sha256").toLowerCase(Locale.ROOT);
+        if (!wantedMode.equals("sha256") && !wantedMode.equals("sha256d")) {
+            throw new IllegalArgumentException("unknown hash " + wantedMode + ", use sha256 or sha256d");
+        }
+        mode = wantedMode;
+        String wanted = System.getProperty("blockchain.hash.impl", "auto").toLowerCase(Locale.ROOT);
+        List<HashFunction> passed = new ArrayList<>();
+        for (HashFunction f : new HashFunction[]{JDK, JAVA}) {
+            String problem = check(f, JDK);
+            if (problem == null) {
+                passed.add(f);
+            } else {
+                System.out.println("**Error: the " + f.getName() + " SHA-256 is not used, " + problem);
+            }
+        }
+        if (passed.isEmpty()) {
+            throw new IllegalStateException("no SHA-256 implementation passed its check");
+        }
+        HashFunction chosen = null;
+        StringBuilder speeds = new StringBuilder();
+        for (HashFunction f : passed) {
+            if (f.getName().equals(wanted)) {
+                chosen = f;
+            }
+        }
+        if (chosen == null) {
+            if (!wanted.equals("auto")) {
+                System.out.println("**Error: no usable SHA-256 implementation " + wanted + ", racing the others");
+            }
+            double best = -1;
+            for (HashFunction f : passed) {
+                double perMilli = hashesPerMilli(f, RACE_NANOS);
+                speeds.append(speeds.length() == 0 ? " (" : ", ").append(f.getName()).append(String.format(Locale.ROOT, " %.0f", perMilli));
+                if (perMilli > best) {
+                    best = perMilli;
+                    chosen = f;
+                }
+            }
+            speeds.append(" hashes per ms)");
+        }
+        report = mode + " on " + chosen.getName() + speeds;
+        return mode.equals("sha256d") ? doubled(chosen) : chosen;
+    }
+
+    /**
+     * Checks a SHA-256 implementation against the test vectors and against a
+     * reference on random inputs of every length up to three blocks, fed at
+     * once, in random pieces and through a cloned midstate.
+     *
+     * @param f
+     * @param reference
+     * @return what is wrong, null if nothing is
+     */
+    static String check(HashFunction f, HashFunction reference) {
+        try {
+            MessageDigest md = f.newDigest();
+            for (String[] vector : VECTORS) {
+                String hex = MiningHasher.toHex(md.digest(vector[0].getBytes(StandardCharsets.US_ASCII)));
+                if (!hex.equals(vector[1])) {
+                    return "SHA-256(\"" + vector[0] + "\") is " + hex;
+                }
+            }
+            MessageDigest ref = reference.newDigest();
+            Random random = new Random(1);
+            byte[] out = new byte[32];
+            for (int len = 0; len <= 192; len++) {
+                byte[] input = new byte[len];
+                random.nextBytes(input);
+                byte[] expected = ref.digest(input);
+                if (!Arrays.equals(md.digest(input), expected)) {
+                    return "the hash of " + len + " bytes differs";
+                }
+                //the same input in random pieces, the last one through a clone
+                int cut = len == 0 ? 0 : random.nextInt(len + 1);
+                md.update(input, 0, cut / 2);
+                for (int i = cut / 2; i < cut; i++) {
+                    md.update(input[i]);
+                }
+                MessageDigest midstate = (MessageDigest) md.clone();
+                md.update(new byte[]{1, 2, 3}); //the original goes on, the clone must not see it
+                midstate.update(input, cut, len - cut);
+                midstate.digest(out, 0, 32);
+                md.reset();
+                if (!Arrays.equals(out, expected)) {
+                    return "the hash of " + len + " bytes fed in pieces differs";
+                }
+            }
+            return null;
+        } catch (CloneNotSupportedException | DigestException | RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    /**
+     * Hashes a typical block header (about 150 bytes, the way
+     * Block.applySha256 does) for a while after a warmup.
+     *
+     * @param f
+     * @param nanos
+     * @return hashes per millisecond
+     */
+    static double hashesPerMilli(HashFunction f, long nanos) {
+        MessageDigest md = f.newDigest();
+        byte[] header = ("1" + "2019-03-15 00:00:00.0" + "pay alice 10" + "0000a1b2c3d4e5f60718293a4b5c6d7e8f90a1b2c3d4e5f60718293a4b5c6d7e8"
+                + "12345678" + "4").getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[32];
+        try {
+            for (int i = 0; i < WARMUP_HASHES; i++) {
+                md.update(header);
+                md.digest(out, 0, 32);
+                header[0] = out[0];
+            }
+            long count = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    md.update(header);
+                    md.digest(out, 0, 32);
+                    //the next input depends on this hash so the loop cannot be skipped
+                    header[0] = out[0];
+                }
+                count += 1000;
+                now = System.nanoTime();
+            } while (now - start < nanos);
+            return count * 1e6 / (now - start);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Selected: " + describe());
+        for (HashFunction f : new HashFunction[]{JDK, JAVA, doubled(JDK), doubled(JAVA)}) {
+            boolean twice = f.newDigest() instanceof DoubleDigest;
+            String problem;
+            if (twice) {
+                String hex = MiningHasher.toHex(f.newDigest().digest("abc".getBytes(StandardCharsets.US_ASCII)));
+                problem = hex.equals(DOUBLE_ABC) ? null : "SHA-256d(\"abc\") is " + hex;
+            } else {
+                problem = check(f, JDK);
+            }
+            System.out.format(Locale.ROOT, "%-12s %-6s %10.0f hashes per ms%n", (twice ? "sha256d " : "sha256 ") + f.getName(),
+                    problem == null ? "ok" : "FAILED", hashesPerMilli(f, 1_000_000_000L));
+            if (problem != null) {
+                System.out.println("  " + problem);
+            }
+        }
+    }
+
+}//end class
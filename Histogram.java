@@ -0,0 +1,150 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * This is the Histogram class that records long values (durations in
+ * nanoseconds or counts) into buckets so that percentiles can be read without
+ * keeping every value. Values are grouped by their highest bit and then split
+ * into 8 sub buckets, so a percentile is off by at most 12.5%. Recording is
+ * lock free and can be done from many threads at once.
+ */
+final class Histogram {
+
+    private static final int SUB_BITS = 3; //8 sub buckets per power of two
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * value - a value >= 0, negative values are recorded as 0
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+        m = min.get();
+        while (value < m && !min.compareAndSet(m, value)) {
+            m = min.get();
+        }
+    }
+
+    //bucket index: highest bit, then the next SUB_BITS bits below it
+    private static int bucketOf(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int high = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (high - SUB_BITS)) & (SUB - 1);
+        return (high - SUB_BITS + 1) * SUB + sub;
+    }
+
+    //largest value that falls into a bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int high = bucket / SUB + SUB_BITS - 1;
+        long sub = bucket % SUB;
+        long lower = (1L << high) | (sub << (high - SUB_BITS));
+        return lower + (1L << (high - SUB_BITS)) - 1;
+    }
+
+    /**
+     * the number of recorded values
+     *
+     * @return
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * the sum of all recorded values
+     *
+     * @return
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * the mean of the recorded values, 0 if there are none
+     *
+     * @return
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * the largest recorded value, 0 if there are none
+     *
+     * @return
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * the smallest recorded value, 0 if there are none
+     *
+     * @return
+     */
+    public long getMin() {
+        long m = min.get();
+        return m == Long.MAX_VALUE ? 0 : m;
+    }
+
+    /**
+     * An upper bound of the given percentile of the recorded values, capped
+     * at the largest value recorded.
+     *
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * forgets all recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+        min.set(Long.MAX_VALUE);
+    }
+
+}//end class
@@ -0,0 +1,162 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ *
+ * This is the JsonChainWriter class that writes blocks as JSON to a Writer one
+ * at a time, so a chain can be printed or sent without holding all of its
+ * text in memory. Every String is escaped, so data holding quotes, back
+ * slashes or control characters still gives valid JSON.
+ *
+ * A block is written with the same fields as Block.toString:
+ * {"index" : 1,"time stamp " : "...","Tx ":"...","PrevHash" : "...","nonce" : 5,"difficulty": 2}
+ * where a batched block also has "MerkleRoot" and the array "Txs" after "Tx ",
+ * and a chain as {"ds_chain" : [block,block...],"chainHash":"..."}.
+ */
+final class JsonChainWriter implements Closeable, Flushable {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private boolean first = true; //no comma before the first block of a chain
+
+    /**
+     * out - where the JSON goes, it is not buffered here
+     *
+     * @param out
+     */
+    JsonChainWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * starts the chain object and its array of blocks
+     *
+     * @throws IOException
+     */
+    public void beginChain() throws IOException {
+        out.write("{\"ds_chain\" : [");
+        first = true;
+    }
+
+    /**
+     * writes one block of the chain
+     *
+     * @param block
+     * @throws IOException
+     */
+    public void writeBlock(Block block) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        first = false;
+        appendBlock(out, block);
+    }
+
+    /**
+     * ends the array of blocks and the chain object
+     *
+     * @param chainHash the hash of the most recent block
+     * @throws IOException
+     */
+    public void endChain(String chainHash) throws IOException {
+        out.write("],");
+        out.write(System.lineSeparator());
+        out.write("\"chainHash\":");
+        appendString(out, chainHash);
+        out.write('}');
+    }
+
+    /**
+     * Appends the JSON of one block followed by a line separator, the format
+     * of Block.toString.
+     *
+     * @param out
+     * @param block
+     * @throws IOException
+     */
+    static void appendBlock(Appendable out, Block block) throws IOException {
+        out.append("{\"index\" : ").append(String.valueOf(block.index));
+        out.append(",\"time stamp \" : ");
+        appendString(out, block.timeStamp == null ? null : block.timeStamp.toString());
+        out.append(",\"Tx \":");
+        appendString(out, block.data);
+        if (block.isBatched()) {
+            //a batched block lists its transactions under their Merkle root
+            out.append(",\"MerkleRoot\" : ");
+            appendString(out, block.merkleRoot);
+            out.append(",\"Txs\" : [");
+            for (int i = 0; i < block.transactions.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                appendString(out, block.transactions.get(i));
+            }
+            out.append(']');
+        }
+        out.append(",\"PrevHash\" : ");
+        appendString(out, block.previousHash);
+        out.append(",\"nonce\" : ").append(block.nonceString());
+        out.append(",\"difficulty\": ").append(String.valueOf(block.difficulty));
+        out.append('}').append(System.lineSeparator());
+    }
+
+    /**
+     * appends a quoted and escaped JSON string, or null
+     *
+     * @param out
+     * @param s
+     * @throws IOException
+     */
+    static void appendString(Appendable out, String s) throws IOException {
+        if (s == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        int plain = 0; //start of the characters that need no escaping
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            out.append(s, plain, i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    //other control characters and the JavaScript line separators
+                    out.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf]).append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+            }
+            plain = i + 1;
+        }
+        out.append(s, plain, s.length());
+        out.append('"');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}//end class
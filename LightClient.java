@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * This is the LightClient class, a verifier that keeps only block headers.
+ * Every header it accepts has a hash that matches its fields, the proof of
+ * work its difficulty asks for, and a previousHash that is the hash of the
+ * header before it. Once the headers are accepted, checking that a
+ * transaction is on the chain takes a MerkleProof and one hash per level of
+ * the block's Merkle tree, instead of downloading and hashing the chain.
+ */
+final class LightClient {
+
+    private final List<BlockHeader> headers = new ArrayList<>();
+
+    /**
+     * Appends the next header if it is valid.
+     *
+     * @param header
+     * @return false if the header was refused
+     */
+    public boolean addHeader(BlockHeader header) {
+        if (header.getIndex() != headers.size()) {
+            return false;
+        }
+        if (header.getHash() == null || !header.getHash().equals(header.computeHash())) {
+            return false;
+        }
+        if (!Block.meetsDifficulty(header.getHash(), header.getDifficulty())) {
+            return false;
+        }
+        if (!headers.isEmpty() && !headers.get(headers.size() - 1).getHash().equals(header.getPreviousHash())) {
+            return false;
+        }
+        headers.add(header);
+        return true;
+    }
+
+    /**
+     * Appends headers in order until one is refused.
+     *
+     * @param next
+     * @return the number of headers accepted
+     */
+    public int addHeaders(List<BlockHeader> next) {
+        int accepted = 0;
+        for (BlockHeader h : next) {
+            if (!addHeader(h)) {
+                break;
+            }
+            accepted++;
+        }
+        return accepted;
+    }
+
+    /**
+     * the number of accepted headers
+     *
+     * @return
+     */
+    public int getHeight() {
+        return headers.size();
+    }
+
+    /**
+     * the hash of the most recent accepted header, null if there is none
+     *
+     * @return
+     */
+    public String getTipHash() {
+        return headers.isEmpty() ? null : headers.get(headers.size() - 1).getHash();
+    }
+
+    /**
+     * Checks that a transaction is in an accepted block.
+     *
+     * @param tx
+     * @param proof
+     * @return
+     */
+    public boolean verifyTransaction(String tx, MerkleProof proof) {
+        if (proof.getBlockIndex() < 0 || proof.getBlockIndex() >= headers.size()) {
+            return false;
+        }
+        return proof.verify(tx, headers.get(proof.getBlockIndex()));
+    }
+
+}//end class
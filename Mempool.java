@@ -0,0 +1,134 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * This is the Mempool class, the pool of transactions that wait to be put
+ * into a block. Instead of mining one block per transaction, the chain drains
+ * a batch of pending transactions into one block and pays for one proof of
+ * work.
+ *
+ * A batch is ready when it holds maxTransactions transactions, when it holds
+ * maxBytes bytes of transactions, or when its oldest transaction has waited
+ * maxWaitMillis. A batch never holds more than maxTransactions transactions or
+ * (unless a single transaction is larger) more than maxBytes bytes.
+ */
+final class Mempool {
+
+    private final int maxTransactions;
+    private final long maxBytes;
+    private final long maxWaitMillis;
+    private final int capacity; //pending transactions beyond this are refused
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final ArrayDeque<Long> arrivals = new ArrayDeque<>(); //arrival time of each pending transaction
+    private long pendingBytes;
+
+    /**
+     * @param maxTransactions the most transactions in one block
+     * @param maxBytes the most bytes of transactions in one block
+     * @param maxWaitMillis the longest time a transaction waits for its batch
+     * @param capacity the most pending transactions
+     */
+    Mempool(int maxTransactions, long maxBytes, long maxWaitMillis, int capacity) {
+        if (maxTransactions < 1 || maxBytes < 1 || capacity < 1) {
+            throw new IllegalArgumentException("mempool limits must be > 0");
+        }
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        this.maxWaitMillis = maxWaitMillis;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a pool configured by the system properties blockchain.batch.size
+     * (transactions per block), blockchain.batch.bytes (default 1 MB),
+     * blockchain.batch.millis (default 10 seconds) and blockchain.mempool.capacity
+     * (default 100000).
+     *
+     * @return null when blocks hold one transaction each (batch size 1, the
+     * default)
+     */
+    static Mempool fromSystemProperties() {
+        int size = Integer.getInteger("blockchain.batch.size", 1);
+        if (size <= 1) {
+            return null;
+        }
+        return new Mempool(size, Long.getLong("blockchain.batch.bytes", 1 << 20),
+                Long.getLong("blockchain.batch.millis", 10_000), Integer.getInteger("blockchain.mempool.capacity", 100_000));
+    }
+
+    /**
+     * the most transactions in one block
+     *
+     * @return
+     */
+    public int getMaxTransactions() {
+        return maxTransactions;
+    }
+
+    /**
+     * adds a transaction to the pool
+     *
+     * @param tx
+     * @return false if the pool is full and the transaction was refused
+     */
+    public synchronized boolean add(String tx) {
+        if (pending.size() >= capacity) {
+            return false;
+        }
+        pending.addLast(tx);
+        arrivals.addLast(System.currentTimeMillis());
+        pendingBytes += bytes(tx);
+        return true;
+    }
+
+    /**
+     * the number of pending transactions
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * whether the pending transactions fill a batch by count, size or age
+     *
+     * @return
+     */
+    public synchronized boolean isBatchReady() {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        return pending.size() >= maxTransactions || pendingBytes >= maxBytes
+                || System.currentTimeMillis() - arrivals.peekFirst() >= maxWaitMillis;
+    }
+
+    /**
+     * Takes the oldest pending transactions that fit in one block.
+     *
+     * @return an empty list if nothing is pending
+     */
+    public synchronized List<String> drainBatch() {
+        List<String> batch = new ArrayList<>();
+        long batchBytes = 0;
+        while (!pending.isEmpty() && batch.size() < maxTransactions) {
+            long size = bytes(pending.peekFirst());
+            if (!batch.isEmpty() && batchBytes + size > maxBytes) {
+                break;
+            }
+            batch.add(pending.pollFirst());
+            arrivals.pollFirst();
+            batchBytes += size;
+            pendingBytes -= size;
+        }
+        return batch;
+    }
+
+    private static long bytes(String tx) {
+        return tx.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+}//end class
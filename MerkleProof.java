@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * This is the MerkleProof class, the proof that a transaction is in a block.
+ * It holds the sibling hashes on the path from the transaction's leaf to the
+ * Merkle root, so checking it costs one hash per level of the tree - log2 of
+ * the number of transactions in the block - and needs only the block header,
+ * not the other transactions.
+ *
+ * A block that is not batched has its one transaction in the header itself;
+ * its proof has no path and checks that the transaction is the header data.
+ */
+final class MerkleProof {
+
+    private final int blockIndex;
+    private final int position; //position of the transaction in its block
+    private final boolean batched;
+    private final List<byte[]> siblings; //from the leaf level up
+    private final List<Boolean> siblingOnLeft; //for each sibling, whether it is hashed before the path node
+
+    /**
+     * @param blockIndex
+     * @param position
+     * @param batched false for the proof of a block that is not batched
+     * @param siblings
+     * @param siblingOnLeft
+     */
+    MerkleProof(int blockIndex, int position, boolean batched, List<byte[]> siblings, List<Boolean> siblingOnLeft) {
+        if (siblings.size() != siblingOnLeft.size()) {
+            throw new IllegalArgumentException("every sibling needs a side");
+        }
+        this.blockIndex = blockIndex;
+        this.position = position;
+        this.batched = batched;
+        this.siblings = Collections.unmodifiableList(new ArrayList<>(siblings));
+        this.siblingOnLeft = Collections.unmodifiableList(new ArrayList<>(siblingOnLeft));
+    }
+
+    /**
+     * Builds the proof for the transaction at the given position of a batched
+     * block, walking the same tree as MerkleTree.root.
+     *
+     * @param blockIndex
+     * @param transactions
+     * @param position
+     * @return
+     */
+    static MerkleProof build(int blockIndex, List<String> transactions, int position) {
+        if (position < 0 || position >= transactions.size()) {
+            throw new IllegalArgumentException("no transaction at " + position);
+        }
+        List<byte[]> siblings = new ArrayList<>();
+        List<Boolean> onLeft = new ArrayList<>();
+        byte[][] level = new byte[transactions.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = MerkleTree.leaf(transactions.get(i));
+        }
+        int size = level.length;
+        int at = position;
+        while (size > 1) {
+            int sibling = at ^ 1;
+            if (sibling < size) {
+                siblings.add(level[sibling]);
+                onLeft.add(sibling < at);
+            }
+            //an odd node out goes up without a sibling
+            int next = 0;
+            for (int i = 0; i < size; i += 2) {
+                level[next++] = i + 1 < size ? MerkleTree.node(level[i], level[i + 1]) : level[i];
+            }
+            size = next;
+            at /= 2;
+        }
+        return new MerkleProof(blockIndex, position, true, siblings, onLeft);
+    }
+
+    /**
+     * the proof for the one transaction of a block that is not batched
+     *
+     * @param blockIndex
+     * @return
+     */
+    static MerkleProof plain(int blockIndex) {
+        return new MerkleProof(blockIndex, 0, false, Collections.<byte[]>emptyList(), Collections.<Boolean>emptyList());
+    }
+
+    /**
+     * Checks the proof against the header of its block: the Merkle root of a
+     * batched block, the data of a plain one.
+     *
+     * @param tx the transaction
+     * @param header the header of block getBlockIndex()
+     * @return
+     */
+    public boolean verify(String tx, BlockHeader header) {
+        if (header.getIndex() != blockIndex || header.isBatched() != batched) {
+            return false;
+        }
+        if (!batched) {
+            return tx.equals(header.getPayload());
+        }
+        return MiningHasher.toHex(computeRoot(tx)).equals(header.getPayload());
+    }
+
+    /**
+     * the Merkle root this proof leads to from the transaction
+     *
+     * @param tx
+     * @return
+     */
+    public byte[] computeRoot(String tx) {
+        byte[] node = MerkleTree.leaf(tx);
+        for (int i = 0; i < siblings.size(); i++) {
+            node = siblingOnLeft.get(i) ? MerkleTree.node(siblings.get(i), node) : MerkleTree.node(node, siblings.get(i));
+        }
+        return node;
+    }
+
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * the number of hashes on the path
+     *
+     * @return
+     */
+    public int getDepth() {
+        return siblings.size();
+    }
+
+    /**
+     * The proof as bytes: block index and position (4 bytes each), a flags
+     * byte (1 if batched), the number of siblings and a sides bitmap (varints,
+     * bit i set if sibling i is on the left) and the 32 byte siblings.
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        long sides = 0;
+        for (int i = 0; i < siblingOnLeft.size(); i++) {
+            if (siblingOnLeft.get(i)) {
+                sides |= 1L << i;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(9 + 10 + 10 + 32 * siblings.size());
+        out.putInt(blockIndex).putInt(position).put((byte) (batched ? 1 : 0));
+        BlockCodec.putVarint(out, siblings.size());
+        BlockCodec.putVarint(out, sides);
+        for (byte[] s : siblings) {
+            out.put(s);
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * reads a proof written by toBytes
+     *
+     * @param bytes
+     * @return
+     */
+    static MerkleProof fromBytes(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int blockIndex = in.getInt();
+        int position = in.getInt();
+        boolean batched = in.get() != 0;
+        int count = (int) BlockCodec.getVarint(in);
+        long sides = BlockCodec.getVarint(in);
+        if (count < 0 || count > 64 || count * 32 != in.remaining()) {
+            throw new IllegalArgumentException("bad proof");
+        }
+        List<byte[]> siblings = new ArrayList<>();
+        List<Boolean> onLeft = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] s = new byte[32];
+            in.get(s);
+            siblings.add(s);
+            onLeft.add((sides >>> i & 1) != 0);
+        }
+        return new MerkleProof(blockIndex, position, batched, siblings, onLeft);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"block\" : ").append(blockIndex).append(",\"position\" : ").append(position).append(",\"path\" : [");
+        for (int i = 0; i < siblings.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append('"').append(siblingOnLeft.get(i) ? "L:" : "R:").append(MiningHasher.toHex(siblings.get(i))).append('"');
+        }
+        return sb.append("]}").toString();
+    }
+
+}//end class
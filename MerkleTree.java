@@ -0,0 +1,79 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ *
+ * This is the MerkleTree class that computes the Merkle root of the
+ * transactions of a block. The block header commits to the root instead of the
+ * transactions themselves, so the cost of hashing a header while mining does
+ * not grow with the number of transactions.
+ *
+ * Leaves and inner nodes are hashed with different prefixes (0 for a leaf, 1
+ * for a node, as in RFC 6962) so a node can never be passed off as a
+ * transaction. A node without a sibling is carried up to the next level as it
+ * is instead of being paired with a copy of itself, so two different lists of
+ * transactions never have the same root.
+ */
+final class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private MerkleTree() {
+    }
+
+    /**
+     * the hash of one transaction as a leaf of the tree
+     *
+     * @param tx
+     * @return
+     */
+    static byte[] leaf(String tx) {
+        MessageDigest md = MiningHasher.sha256();
+        md.update(LEAF);
+        return md.digest(tx.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * the hash of an inner node from its two children
+     *
+     * @param left
+     * @param right
+     * @return
+     */
+    static byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = MiningHasher.sha256();
+        md.update(NODE);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    /**
+     * the Merkle root of the transactions as a String holding Hexadecimal
+     * characters
+     *
+     * @param transactions at least one transaction
+     * @return
+     */
+    static String root(List<String> transactions) {
+        if (transactions.isEmpty()) {
+            throw new IllegalArgumentException("a Merkle tree needs at least one transaction");
+        }
+        byte[][] level = new byte[transactions.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = leaf(transactions.get(i));
+        }
+        int size = level.length;
+        while (size > 1) {
+            int next = 0;
+            for (int i = 0; i < size; i += 2) {
+                //an odd node out goes up unchanged
+                level[next++] = i + 1 < size ? node(level[i], level[i + 1]) : level[i];
+            }
+            size = next;
+        }
+        return MiningHasher.toHex(level[0]);
+    }
+
+}//end class
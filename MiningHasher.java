@@ -0,0 +1,207 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * This is the MiningHasher class that tries nonces for one Block without
+ * building Strings. The hash input of a block is the concatenation of index,
+ * timestamp, data (or Merkle root), previousHash, nonce and difficulty, after
+ * Block.BATCHED_DOMAIN for a batched block, so
+ * everything before the nonce is the same for every attempt. That prefix is
+ * encoded to bytes once. When it spans at least one full SHA-256 block (64 bytes) the digest
+ * state after the prefix is kept and cloned for each attempt, otherwise the
+ * digest is reset and the short prefix is fed again. The nonce and difficulty
+ * digits are written into a reused byte buffer and the target is checked on
+ * the raw digest bytes, so no hex String is built until a good hash is found.
+ *
+ * A MiningHasher is not thread safe: every mining thread creates its own.
+ */
+final class MiningHasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] prefix; //domain + index + timeStamp + data or Merkle root + previousHash in UTF-8
+    private final MessageDigest midstate; //digest after the prefix, null if the prefix is short
+    private final MessageDigest digest; //digest used for the attempts
+    private final byte[] difficultyBytes; //decimal digits of the block's difficulty
+    private final byte[] suffix = new byte[40]; //nonce digits followed by the difficulty digits
+    private final byte[] out = new byte[32]; //the raw hash of the last attempt
+    private long attempts; //number of nonces hashed so far
+
+    /**
+     * block - the block to mine. Its index, timestamp, data, previousHash and
+     * difficulty must not change while this hasher is used.
+     *
+     * @param block
+     */
+    MiningHasher(Block block) {
+        prefix = (block.domain() + block.index + block.timeStamp + block.payload() + block.previousHash).getBytes(StandardCharsets.UTF_8);
+        difficultyBytes = String.valueOf(block.difficulty).getBytes(StandardCharsets.US_ASCII);
+        digest = newDigest();
+        if (prefix.length >= 64) {
+            midstate = newDigest();
+            midstate.update(prefix);
+        } else {
+            midstate = null;
+        }
+    }
+
+    /**
+     * Hashes the block with the given nonce. The raw result can be read with
+     * meetsDifficulty and toHex.
+     *
+     * @param nonce a nonce >= 0
+     */
+    public void hash(long nonce) {
+        attempts++;
+        MessageDigest md;
+        if (midstate != null) {
+            try {
+                md = (MessageDigest) midstate.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            md = digest;
+            md.reset();
+            md.update(prefix);
+        }
+        int len = writeSuffix(nonce);
+        md.update(suffix, suffix.length - len, len);
+        try {
+            md.digest(out, 0, out.length);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //writes the decimal nonce and difficulty at the end of the suffix buffer, returns the length
+    private int writeSuffix(long nonce) {
+        int pos = suffix.length - difficultyBytes.length;
+        System.arraycopy(difficultyBytes, 0, suffix, pos, difficultyBytes.length);
+        do {
+            suffix[--pos] = (byte) ('0' + (nonce % 10));
+            nonce /= 10;
+        } while (nonce != 0);
+        return suffix.length - pos;
+    }
+
+    /**
+     * checks that the last hash starts with the given number of 0 nibbles, or
+     * is not above the target of a compact difficulty
+     *
+     * @param difficulty
+     * @return false for a difficulty Difficulty.isValid rejects
+     */
+    public boolean meetsDifficulty(int difficulty) {
+        if (Difficulty.isTarget(difficulty)) {
+            byte[] target = Difficulty.targetBytes(difficulty);
+            return target != null && Difficulty.meetsTarget(out, target);
+        }
+        return Difficulty.isValid(difficulty) && leadingZeroNibbles(out, difficulty);
+    }
+
+    /**
+     * the number of nonces hashed by this hasher
+     *
+     * @return
+     */
+    public long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * the last hash as a String holding Hexadecimal characters
+     *
+     * @return
+     */
+    public String toHex() {
+        return toHex(out);
+    }
+
+    /**
+     * Finds the lowest nonce from start upwards, in steps of stride, that gives
+     * a hash with the given number of leading hex zeroes (or not above the
+     * given compact target), trying nonces only while they are below limit.
+     *
+     * @param start
+     * @param stride
+     * @param difficulty
+     * @return the nonce found, or -1 if there is none below the limit
+     */
+    public long search(long start, long stride, int difficulty, LongSupplier limit) {
+        if (Difficulty.isTarget(difficulty)) {
+            //the target is expanded once, each attempt compares raw bytes
+            byte[] target = Difficulty.targetBytes(difficulty);
+            if (target == null) {
+                return -1;
+            }
+            for (long n = start; n >= 0 && n < limit.getAsLong(); n += stride) {
+                hash(n);
+                if (Difficulty.meetsTarget(out, target)) {
+                    return n;
+                }
+            }
+            return -1;
+        }
+        for (long n = start; n >= 0 && n < limit.getAsLong(); n += stride) {
+            hash(n);
+            if (leadingZeroNibbles(out, difficulty)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * checks that a raw hash starts with the given number of 0 nibbles
+     *
+     * @param hash
+     * @param difficulty
+     * @return
+     */
+    public static boolean leadingZeroNibbles(byte[] hash, int difficulty) {
+        if (difficulty > hash.length * 2) {
+            return false;
+        }
+        int full = difficulty / 2;
+        for (int i = 0; i < full; i++) {
+            if (hash[i] != 0) {
+                return false;
+            }
+        }
+        return (difficulty & 1) == 0 || (hash[full] & 0xf0) == 0;
+    }
+
+    /**
+     * raw bytes as a String holding Hexadecimal characters
+     *
+     * @param bytes
+     * @return
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * the SHA-256 digest of the calling thread, reset and ready to use
+     *
+     * @return
+     */
+    public static MessageDigest sha256() {
+        return Hashing.digest();
+    }
+
+    //a digest of the hash function chosen at startup
+    private static MessageDigest newDigest() {
+        return Hashing.get().newDigest();
+    }
+
+}//end class
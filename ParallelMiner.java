@@ -0,0 +1,143 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This is the ParallelMiner class that runs the proof of work of a Block on a
+ * pool of worker threads. The nonce space is striped across the workers:
+ * worker w tries the nonces w, w + n, w + 2n, ... where n is the number of
+ * workers.
+ *
+ * As soon as a worker finds a good hash it publishes its nonce as the best one
+ * so far. Every worker stops once its next nonce is larger than the best one,
+ * so all of them stop shortly after the first hit. Because each worker walks
+ * its stripe upwards, every nonce below the published one has been tried when
+ * the pool is done, which makes the result the lowest winning nonce - the same
+ * nonce no matter how the threads were scheduled.
+ */
+final class ParallelMiner {
+
+    private final int workers;
+    private final ExecutorService pool;
+    private long[] hashes; //hashes tried by each worker in the last mine call
+    private long[] nanos; //time spent by each worker in the last mine call
+
+    /**
+     * workers - the number of threads that search the nonce space
+     *
+     * @param workers
+     */
+    ParallelMiner(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be > 0");
+        }
+        this.workers = workers;
+        this.pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "miner");
+            t.setDaemon(true);
+            return t;
+        });
+        this.hashes = new long[workers];
+        this.nanos = new long[workers];
+    }
+
+    /**
+     * the number of threads in this miner
+     *
+     * @return
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Finds the lowest nonce that gives the block a hash with the given number
+     * of leading hex zeroes. The block's nonce and hash are set to the result.
+     *
+     * @param block
+     * @param difficulty
+     * @return the hash of the mined block
+     */
+    public String mine(Block block, int difficulty) {
+        long mineStart = System.nanoTime();
+        AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+        long[] tried = new long[workers];
+        long[] elapsed = new long[workers];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            tasks.add(() -> {
+                long start = System.nanoTime();
+                MiningHasher hasher = new MiningHasher(block);
+                //walk this worker's stripe until a lower or equal nonce has been found
+                long n = hasher.search(worker, workers, difficulty, best::get);
+                if (n >= 0) {
+                    publish(best, n);
+                }
+                tried[worker] = hasher.getAttempts();
+                elapsed[worker] = System.nanoTime() - start;
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        hashes = tried;
+        nanos = elapsed;
+        long attempts = 0;
+        for (long t : tried) {
+            attempts += t;
+        }
+        if (best.get() == Long.MAX_VALUE) {
+            //no nonce below Long.MAX_VALUE works, go on with wide nonces
+            ChainMetrics.get().recordHashes(attempts);
+            return block.widenedProofOfWork(difficulty);
+        }
+        block.setProof(best.get(), block.calculateHash(BigInteger.valueOf(best.get())));
+        ChainMetrics.get().recordMining(attempts, System.nanoTime() - mineStart, best.get());
+        return block.hash;
+    }
+
+    //keeps the smallest winning nonce
+    private static void publish(AtomicLong best, long nonce) {
+        long current = best.get();
+        while (nonce < current && !best.compareAndSet(current, nonce)) {
+            current = best.get();
+        }
+    }
+
+    /**
+     * hashes per second of each worker during the last mine call
+     *
+     * @return
+     */
+    public long[] getHashesPerSecond() {
+        long[] rates = new long[workers];
+        for (int w = 0; w < workers; w++) {
+            rates[w] = nanos[w] == 0 ? 0 : (long) (hashes[w] * 1e9 / nanos[w]);
+        }
+        return rates;
+    }
+
+    /**
+     * stops the worker threads
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+}//end class
@@ -0,0 +1,221 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ *
+ * This is the Sha256 class, SHA-256 (FIPS 180-4) written in plain Java as a
+ * MessageDigest, so it can stand in for the JDK's provider anywhere a digest
+ * is used, including the cloned midstates of MiningHasher.
+ *
+ * It is written for the short, fixed-size inputs of mining: the rounds are
+ * unrolled eight at a time so the working variables stay in registers
+ * instead of being shifted through on every round, the message schedule and
+ * the block buffer are reused, and digest writes the padding and the result
+ * in place without allocating. A cloned midstate copies three small arrays.
+ *
+ * Not thread safe, like any MessageDigest.
+ */
+final class Sha256 extends MessageDigest implements Cloneable {
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] INITIAL = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    private static final int DIGEST_LENGTH = 32;
+
+    private int[] state = new int[8];
+    private byte[] block = new byte[64]; //input not yet compressed
+    private int blockLength;
+    private long length; //bytes hashed so far
+    private int[] w = new int[64]; //the message schedule
+
+    Sha256() {
+        super("SHA-256");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLength++] = input;
+        length++;
+        if (blockLength == 64) {
+            compress(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        length += len;
+        if (blockLength > 0) {
+            int n = Math.min(len, 64 - blockLength);
+            System.arraycopy(input, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            len -= n;
+            if (blockLength < 64) {
+                return;
+            }
+            compress(block, 0);
+            blockLength = 0;
+        }
+        //whole blocks are compressed straight from the input
+        while (len >= 64) {
+            compress(input, offset);
+            offset += 64;
+            len -= 64;
+        }
+        System.arraycopy(input, offset, block, 0, len);
+        blockLength = len;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        byte[] out = new byte[DIGEST_LENGTH];
+        finish(out, 0);
+        return out;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int len) throws DigestException {
+        if (len < DIGEST_LENGTH) {
+            throw new DigestException("the digest needs " + DIGEST_LENGTH + " bytes, got " + len);
+        }
+        finish(buf, offset);
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset() {
+        System.arraycopy(INITIAL, 0, state, 0, 8);
+        blockLength = 0;
+        length = 0;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Sha256 copy = (Sha256) super.clone();
+        copy.state = state.clone();
+        copy.block = block.clone();
+        copy.w = new int[64];
+        return copy;
+    }
+
+    //pads the input, writes the digest and resets
+    private void finish(byte[] out, int offset) {
+        long bits = length << 3;
+        block[blockLength++] = (byte) 0x80;
+        if (blockLength > 56) {
+            //no room left for the length, it goes in a block of its own
+            while (blockLength < 64) {
+                block[blockLength++] = 0;
+            }
+            compress(block, 0);
+            blockLength = 0;
+        }
+        while (blockLength < 56) {
+            block[blockLength++] = 0;
+        }
+        for (int i = 7; i >= 0; i--) {
+            block[blockLength++] = (byte) (bits >>> (8 * i));
+        }
+        compress(block, 0);
+        for (int i = 0; i < 8; i++) {
+            int s = state[i];
+            out[offset++] = (byte) (s >>> 24);
+            out[offset++] = (byte) (s >>> 16);
+            out[offset++] = (byte) (s >>> 8);
+            out[offset++] = (byte) s;
+        }
+        engineReset();
+    }
+
+    //compresses one 64 byte block into the state
+    private void compress(byte[] in, int offset) {
+        int[] w = this.w;
+        for (int t = 0; t < 16; t++, offset += 4) {
+            w[t] = in[offset] << 24 | (in[offset + 1] & 0xff) << 16 | (in[offset + 2] & 0xff) << 8 | (in[offset + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; t++) {
+            int x = w[t - 15];
+            int y = w[t - 2];
+            int s0 = Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+            int s1 = Integer.rotateRight(y, 17) ^ Integer.rotateRight(y, 19) ^ (y >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+        //eight rounds per pass, the variables take each other's roles instead of being moved
+        for (int t = 0; t < 64; t += 8) {
+            h += sum1(e) + ch(e, f, g) + K[t] + w[t];
+            d += h;
+            h += sum0(a) + maj(a, b, c);
+            g += sum1(d) + ch(d, e, f) + K[t + 1] + w[t + 1];
+            c += g;
+            g += sum0(h) + maj(h, a, b);
+            f += sum1(c) + ch(c, d, e) + K[t + 2] + w[t + 2];
+            b += f;
+            f += sum0(g) + maj(g, h, a);
+            e += sum1(b) + ch(b, c, d) + K[t + 3] + w[t + 3];
+            a += e;
+            e += sum0(f) + maj(f, g, h);
+            d += sum1(a) + ch(a, b, c) + K[t + 4] + w[t + 4];
+            h += d;
+            d += sum0(e) + maj(e, f, g);
+            c += sum1(h) + ch(h, a, b) + K[t + 5] + w[t + 5];
+            g += c;
+            c += sum0(d) + maj(d, e, f);
+            b += sum1(g) + ch(g, h, a) + K[t + 6] + w[t + 6];
+            f += b;
+            b += sum0(c) + maj(c, d, e);
+            a += sum1(f) + ch(f, g, h) + K[t + 7] + w[t + 7];
+            e += a;
+            a += sum0(b) + maj(b, c, d);
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    private static int ch(int x, int y, int z) {
+        return (x & y) ^ (~x & z);
+    }
+
+    private static int maj(int x, int y, int z) {
+        return (x & y) ^ (x & z) ^ (y & z);
+    }
+
+    private static int sum0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    private static int sum1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
+
+}//end class